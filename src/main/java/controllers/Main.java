@@ -6,6 +6,11 @@ import com.google.gson.Gson;
 import com.googlecode.wickedcharts.highcharts.jackson.JsonRenderer;
 import com.googlecode.wickedcharts.highcharts.options.Options;
 import database.Database;
+import database.Migrations;
+import database.QueryStats;
+import database.RevenueRollups;
+import database.RowCache;
+import database.UnitOfWork;
 import graph.Graph;
 import graph.Node;
 import j2html.tags.ContainerTag;
@@ -26,6 +31,7 @@ import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -45,6 +51,8 @@ public class Main {
     public static final String DEFAULT_FORM_OPTIONS = "default_form_options";
     public static final String DEFAULT_REPORT_OPTIONS = "default_report_options";
     private static final int MAX_NAVIGATION_HISTORY = 30;
+    private static final boolean devMode = Boolean.getBoolean("dev_mode");
+    private static final int SEARCH_RESULT_LIMIT = 50;
 
     public static ContainerTag getBackButton(@NonNull Request req) {
         return a("Back").withClass("btn btn-sm btn-outline-secondary back-button");
@@ -90,7 +98,7 @@ public class Main {
 
     private synchronized static void registerShowPage(Request req, Response res) {
         Model model = loadModel(req);
-        req.session().attribute(EXPANDED_NODES_SET, Collections.synchronizedSet(new HashSet<Node>()));
+        req.session().attribute(EXPANDED_NODES_SET, Collections.synchronizedSet(new HashSet<Long>()));
         req.session().attribute(SHOW_PAGE_ID, model.getType().toString()+model.getId());
         req.session().attribute(SHOW_PAGE_RESOURCE, model.getType().toString());
     }
@@ -107,17 +115,16 @@ public class Main {
         req.session().removeAttribute(SHOW_PAGE_RESOURCE);
     }
 
-    private synchronized static Set<Node> getRegisteredExpandedResourcesForShowPage(Request req, Response res) {
-        Set<Node> expandedNodes = req.session().attribute(EXPANDED_NODES_SET);
+    // node keys (Node.getKey) rather than nodes, so the session does not hold on to models
+    private synchronized static Set<Long> getRegisteredExpandedResourcesForShowPage(Request req, Response res) {
+        Set<Long> expandedNodes = req.session().attribute(EXPANDED_NODES_SET);
         return expandedNodes;
     }
 
     private synchronized static void registerExpandedResourceForShowPage(Request req, Response res) {
         Model model = loadModel(req);
-        Graph graph = Graph.load();
-        Node node = graph.findNode(model.getType(), model.getId());
-        Set<Node> nodes = getRegisteredExpandedResourcesForShowPage(req, res);
-        nodes.add(node);
+        Set<Long> nodes = getRegisteredExpandedResourcesForShowPage(req, res);
+        nodes.add(model.getNodeKey());
         // add parent associations
         if(model.isRevenueModel()) {
             model.loadAssociations();
@@ -126,7 +133,7 @@ public class Main {
                     List<Model> parents = model.getAssociations().get(association);
                     if(parents!=null && parents.size()==1) {
                         Model parent = parents.get(0);
-                        nodes.add(graph.findNode(parent.getType(), parent.getId()));
+                        nodes.add(parent.getNodeKey());
                     }
                 }
             }
@@ -138,7 +145,7 @@ public class Main {
                         List<Model> parents = model.getAssociations().get(association);
                         if(parents!=null && parents.size()==1) {
                             Model parent = parents.get(0);
-                            nodes.add(graph.findNode(parent.getType(), parent.getId()));
+                            nodes.add(parent.getNodeKey());
                         }
                     }
                 }
@@ -318,7 +325,7 @@ public class Main {
         return true;
     }
 
-    public static List<Model> selectAll(Model model, Association.Model type, List<String> headers, List<String> humanHeaders, Set<String> numericAttrs) throws Exception {
+    public static void selectAll(Model model, Association.Model type, List<String> headers, List<String> humanHeaders, Set<String> numericAttrs, Database.JoinStrategy joinStrategy, Consumer<Model> consumer) throws Exception {
         for(String header : model.getAvailableAttributes()) {
             if (!Constants.isHiddenAttr(header) && !Arrays.asList(Constants.UPDATED_AT,Constants.CREATED_AT).contains(header)) {
                 headers.add(header);
@@ -354,7 +361,7 @@ public class Main {
             headers.add(0, Constants.NAME);
             availableAttributes.add(0, Constants.NAME);
         }
-        return Database.selectAll(model.isRevenueModel(), type, model.getTableName(), availableAttributes, associations, null);
+        Database.selectAll(model.isRevenueModel(), type, model.getTableName(), availableAttributes, associations, null, joinStrategy, consumer);
     }
 
     public static ContainerTag getReportOptionsForm(Request req, Model model, String clazz, ContainerTag... additionalTags) {
@@ -580,14 +587,51 @@ public class Main {
         return new Gson().toJson(Collections.singletonMap("result", html));
     }
 
+    // defaultToRollups picks the sql engine when none was asked for and revenue_rollups can answer the request
+    private static MarketRollup.Engine reportEngineFor(Request req, boolean useCAGR, Constants.MissingRevenueOption missingRevenueOption, boolean defaultToRollups) {
+        if(defaultToRollups && req.queryParams("engine")==null && RevenueRollups.isReady() && MarketRollup.isSupported(useCAGR, missingRevenueOption)) {
+            return MarketRollup.Engine.sql;
+        }
+        MarketRollup.Engine engine = MarketRollup.engineFor(req.queryParams("engine"));
+        if(!engine.equals(MarketRollup.Engine.java) && !MarketRollup.isSupported(useCAGR, missingRevenueOption)) {
+            System.out.println("The "+engine+" report engine does not support CAGR or missing revenue errors, using java instead.");
+            engine = MarketRollup.Engine.java;
+        }
+        return engine;
+    }
+
+    private static ContainerTag getMarketRollupTable(List<MarketRollup> rollups) {
+        List<ContainerTag> rows = new ArrayList<>();
+        Deque<MarketRollup> stack = new ArrayDeque<>();
+        rollups.stream().filter(rollup -> rollup.getDepth()==0).forEach(stack::push);
+        // depth first so each market sits right above its sub markets
+        while(!stack.isEmpty()) {
+            MarketRollup rollup = stack.pop();
+            rows.add(tr().with(
+                    td(rollup.toModel().getSimpleLink()).attr("style", "padding-left: "+(rollup.getDepth()*20+12)+"px;"),
+                    td(Model.formatRevenueString(rollup.getRevenue()))
+            ));
+            List<MarketRollup> subMarkets = new ArrayList<>(rollup.getSubMarkets());
+            subMarkets.sort(Comparator.comparing(MarketRollup::getName).reversed());
+            subMarkets.forEach(stack::push);
+        }
+        return table().withClass("table table-striped").with(
+                thead().with(tr().with(th("Market"), th("Revenue"))),
+                tbody().with(rows)
+        );
+    }
+
     private static void handleNewAssociation(Model baseModel, Model relatedModel, String associationName) {
         if(!(baseModel.isRevenueModel() && relatedModel.isRevenueModel())) {
-            try {
-                baseModel.removeManyToOneAssociations(associationName);
-            } catch(Exception e) {
-                e.printStackTrace();
-            }
-            baseModel.associateWith(relatedModel, associationName, Collections.emptyMap());
+            // replacing the old association is written in one transaction
+            UnitOfWork.run(() -> {
+                try {
+                    baseModel.removeManyToOneAssociations(associationName);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                baseModel.associateWith(relatedModel, associationName, Collections.emptyMap());
+            });
         } else {
             try {
                 baseModel.associateWith(relatedModel, associationName, Collections.emptyMap());
@@ -601,7 +645,22 @@ public class Main {
         staticFiles.externalLocation(new File("public").getAbsolutePath());
         final PasswordHandler passwordHandler = new PasswordHandler();
         port(6969);
+        Migrations.migrate();
         Graph.load();
+        RevenueRollups.rebuild();
+
+        // database round trips per request, with n+1 warnings in the log and the totals as headers in dev mode.
+        // afterAfter also runs for requests that halt or throw, so their stats do not stay behind on the thread
+        before((req, res) -> QueryStats.beginRequest(req.requestMethod()+" "+req.uri()));
+        afterAfter((req, res) -> {
+            QueryStats.RequestStats requestStats = QueryStats.endRequest();
+            if(devMode && requestStats!=null) {
+                res.header("X-DB-Round-Trips", String.valueOf(requestStats.getRoundTrips()));
+                res.header("X-DB-Time-Ms", String.format("%.1f", requestStats.getDbTimeMs()));
+                res.header("X-DB-Repeated-Lookups", String.valueOf(requestStats.getRepeatedLookups()));
+                res.header("X-DB-N-Plus-One", String.valueOf(requestStats.getNPlusOneShapes()));
+            }
+        });
 
         get("/create_user", (req, res)->{
             authorize(req,res);
@@ -696,6 +755,31 @@ public class Main {
             return null;
         });
 
+        get("/query_stats", (req, res) -> {
+            authorize(req, res);
+            Map<String, Object> results = new LinkedHashMap<>();
+            results.put("connection_pool", Database.getPoolStats());
+            results.put("row_cache", RowCache.getStats());
+            results.put("revenue_rollups_ready", RevenueRollups.isReady());
+            results.put("graph_cache", Graph.load().getCacheStats());
+            results.put("string_dictionary", StringDictionary.getStats());
+            results.put("queries", QueryStats.snapshot());
+            res.type("application/json");
+            return new Gson().toJson(results);
+        });
+
+        post("/query_stats/reset", (req, res) -> {
+            authorize(req, res);
+            QueryStats.reset();
+            return new Gson().toJson(Collections.singletonMap("success", "true"));
+        });
+
+        post("/revenue_rollups/rebuild", (req, res) -> {
+            authorize(req, res);
+            RevenueRollups.rebuild();
+            return new Gson().toJson(Collections.singletonMap("success", String.valueOf(RevenueRollups.isReady())));
+        });
+
         get("/back", (req, res) -> {
             String redirect = goBack(req);
             Map<String, Object> results = new HashMap<>();
@@ -883,7 +967,13 @@ public class Main {
                     List<String> fieldsToUse = new ArrayList<>();
                     fieldsToUse.add(fieldToUse);
                     if(_showTopLevelOnly || type.equals(Association.Model.Region)) fieldsToUse.add(Constants.PARENT_REGION_ID);
-                    models = Database.selectAll(model.isRevenueModel(), type, model.getTableName(), fieldsToUse, null, search).stream().filter(m -> !idsToAvoid.contains(m.getId())).filter(m -> fromId == null || !(fromType.equals(type) && m.getId().equals(fromId))).collect(Collectors.toList());
+                    if(search!=null && !type.equals(Association.Model.Region)) {
+                        // indexed trigram search, regions are few enough to keep the plain substring match
+                        models = Database.searchByTrigram(model.isRevenueModel(), type, model.getTableName(), fieldsToUse, search, SEARCH_RESULT_LIMIT);
+                    } else {
+                        models = Database.selectAll(model.isRevenueModel(), type, model.getTableName(), fieldsToUse, null, search);
+                    }
+                    models = models.stream().filter(m -> !idsToAvoid.contains(m.getId())).filter(m -> fromId == null || !(fromType.equals(type) && m.getId().equals(fromId))).collect(Collectors.toList());
                     if(_showTopLevelOnly||regionsOnly) {
                         models = models.stream().filter(m->m.getData().get(Constants.PARENT_REGION_ID)==null).collect(Collectors.toList());
                     } else if(type.equals(Association.Model.Region) && _parentRegionId!=null) {
@@ -960,41 +1050,45 @@ public class Main {
                 Set<String> numericAttrs = new HashSet<>();
                 List<String> humanHeaders = new ArrayList<>();
 
-                List<Map<String,String>> data = selectAll(model, type, headers, humanHeaders, numericAttrs)
-                        .stream().map(m->{
-                            Map<String,String> map = new HashMap<>(m.getData().size()+m.getAssociationsMeta().size());
-                            m.getData().forEach((k,v)->{
-                                if(v instanceof Number || numericAttrs.contains(k)) {
-                                    map.put(k + Constants.TEXT_ONLY, v == null ? null : v.toString());
-                                }
-                                map.put(k,Constants.getFieldFormatter(k).apply(v));
-                            });
-                            String name = m.getName();
-                            if(name==null) {
-                                name = "";
-                            }
-                            map.put(Constants.NAME + Constants.TEXT_ONLY, name);
-                            map.put(Constants.NAME, m.getSimpleLink().render());
+                // optional, to compare the association loaders on the same table
+                String joinStrategyStr = req.queryParams("join_strategy");
+                Database.JoinStrategy joinStrategy = joinStrategyStr == null ? Database.getDefaultJoinStrategy() : Database.JoinStrategy.valueOf(joinStrategyStr.toUpperCase());
+                List<Map<String,String>> data = new ArrayList<>();
+                // rows are formatted as they stream in so the raw models do not need to be kept around
+                selectAll(model, type, headers, humanHeaders, numericAttrs, joinStrategy, m->{
+                    Map<String,String> map = new HashMap<>(m.getData().size()+m.getAssociationsMeta().size());
+                    m.getData().forEach((k,v)->{
+                        if(v instanceof Number || numericAttrs.contains(k)) {
+                            map.put(k + Constants.TEXT_ONLY, v == null ? null : v.toString());
+                        }
+                        map.put(k,Constants.getFieldFormatter(k).apply(v));
+                    });
+                    String name = m.getName();
+                    if(name==null) {
+                        name = "";
+                    }
+                    map.put(Constants.NAME + Constants.TEXT_ONLY, name);
+                    map.put(Constants.NAME, m.getSimpleLink().render());
 
-                            //m.loadAssociations();
-                            m.getAssociationsMeta().forEach(assoc->{
-                                if(!assoc.getType().equals(Association.Type.ManyToOne)) {
-                                    return;
-                                }
-                                List<Model> assocModel = m.getAssociations().get(assoc);
-                                String fieldName = assoc.getAssociationName().toLowerCase().replace(" ", "-");
-                                String fieldNameTextOnly = fieldName+Constants.TEXT_ONLY;
-                                if(assocModel==null) {
-                                    map.put(fieldName, "");
-                                    map.put(fieldNameTextOnly, "");
-                                } else {
-                                    map.put(fieldName, String.join("<br/>", assocModel.stream().map(a -> a.getSimpleLink().render()).collect(Collectors.toList())));
-                                    map.put(fieldNameTextOnly, String.join(" ", assocModel.stream().map(a -> a.getName()).collect(Collectors.toList())));
-                                }
-                            });
+                    //m.loadAssociations();
+                    m.getAssociationsMeta().forEach(assoc->{
+                        if(!assoc.getType().equals(Association.Type.ManyToOne)) {
+                            return;
+                        }
+                        List<Model> assocModel = m.getAssociations().get(assoc);
+                        String fieldName = assoc.getAssociationName().toLowerCase().replace(" ", "-");
+                        String fieldNameTextOnly = fieldName+Constants.TEXT_ONLY;
+                        if(assocModel==null) {
+                            map.put(fieldName, "");
+                            map.put(fieldNameTextOnly, "");
+                        } else {
+                            map.put(fieldName, String.join("<br/>", assocModel.stream().map(a -> a.getSimpleLink().render()).collect(Collectors.toList())));
+                            map.put(fieldNameTextOnly, String.join(" ", assocModel.stream().map(a -> a.getName()).collect(Collectors.toList())));
+                        }
+                    });
 
-                            return map;
-                        }).collect(Collectors.toList());
+                    data.add(map);
+                });
                 DataTable.registerDataTabe(req, headers, data, numericAttrs);
 
                 ContainerTag html = div().withClass("col-12").with(
@@ -1029,7 +1123,7 @@ public class Main {
             Model model = loadModel(req);
             Integer withinGroupId = DataTable.extractInt(req, "group_id", null);
             if(model!=null) {
-                Set<Node> expandedNodes = getRegisteredExpandedResourcesForShowPage(req, res);
+                Set<Long> expandedNodes = getRegisteredExpandedResourcesForShowPage(req, res);
                 ContainerTag diagram = model.loadNestedAssociations(true, 0, false, expandedNodes, withinGroupId, null);
                 registerExpandedResourceForShowPage(req, res);
                 return new Gson().toJson(Collections.singletonMap("result", diagram.render()));
@@ -1317,10 +1411,36 @@ public class Main {
                         throw new RuntimeException("Please select a valid Revenue Domain.");
                     }
 
-                    ContainerTag diagram = model.loadReport(revenueDomain, regionId, startYear, endYear, useCAGR, estimateCagr, missingRevenueOption, discountRate, marketDepth);
+                    MarketRollup.Engine engine = reportEngineFor(req, useCAGR, missingRevenueOption, false);
+                    if(!model.getType().equals(Association.Model.Market)) {
+                        // subtree rollups only exist for markets
+                        engine = MarketRollup.Engine.java;
+                    }
+                    List<MarketRollup> rollups = null;
+                    if(!engine.equals(MarketRollup.Engine.java)) {
+                        rollups = MarketRollup.load(model.getId(), revenueDomain, regionId, startYear, endYear, discountRate, null);
+                    }
+                    ContainerTag diagram;
+                    if(engine.equals(MarketRollup.Engine.sql)) {
+                        diagram = getMarketRollupTable(rollups);
+                    } else {
+                        diagram = model.loadReport(revenueDomain, regionId, startYear, endYear, useCAGR, estimateCagr, missingRevenueOption, discountRate, marketDepth);
+                    }
 
                     ContainerTag html = div().withClass("col-12").with(h4("Date Range: "+startYear+" - "+endYear), br(), diagram);
-                    return new Gson().toJson(Collections.singletonMap("result", html.render()));
+                    Map<String,Object> response = new HashMap<>();
+                    response.put("result", html.render());
+                    if(engine.equals(MarketRollup.Engine.compare)) {
+                        response.put("engine_mismatches", MarketRollup.compare(rollups, rollup -> {
+                            Model market = loadModel(Association.Model.Market, rollup.getId());
+                            if(market==null) {
+                                // not in the graph, e.g. created since it loaded
+                                return null;
+                            }
+                            return market.calculateRevenue(revenueDomain, regionId, startYear, endYear, useCAGR, estimateCagr, missingRevenueOption, null, false, discountRate, null, marketDepth);
+                        }));
+                    }
+                    return new Gson().toJson(response);
                 } catch(Exception e) {
                     e.printStackTrace();
                     if(e instanceof MissingRevenueException) {
@@ -1371,7 +1491,7 @@ public class Main {
             if(model != null) {
                 model.loadAttributesFromDatabase();
                 model.loadAssociations();
-                Set<Node> expanded = getRegisteredExpandedResourcesForShowPage(req, res);
+                Set<Long> expanded = getRegisteredExpandedResourcesForShowPage(req, res);
                 if(expanded==null) expanded = Collections.emptySet();
                 model.loadShowTemplate(getBackButton(req), "Diagram", h5("Diagram"), model.loadNestedAssociations(false, 0, false, expanded, null, null));
                 String html = new Gson().toJson(model);
@@ -1556,12 +1676,28 @@ public class Main {
                 boolean estimateCagr = req.queryParams(Constants.ESTIMATE_CAGR) != null && req.queryParams(Constants.ESTIMATE_CAGR).trim().toLowerCase().startsWith("t");
                 Constants.MissingRevenueOption missingRevenueOption = Constants.MissingRevenueOption.valueOf(req.queryParams("missing_revenue"));
                 int marketDepth = DataTable.extractInt(req, "market_depth", 1);
+                MarketRollup.Engine engine = reportEngineFor(req, useCAGR, missingRevenueOption, true);
+                // subtree totals of every global market in one query
+                final Map<Integer,MarketRollup> rollups = new HashMap<>();
+                if(!engine.equals(MarketRollup.Engine.java)) {
+                    MarketRollup.load(null, Model.RevenueDomain.global, null, startYear, endYear, discountRate, companyId)
+                            .forEach(rollup -> rollups.put(rollup.getId(), rollup));
+                }
+                final Map<Integer,Double> javaRevenues = new HashMap<>();
                 // get all global markets
-                Model company = Graph.load().findNode(Association.Model.Company, companyId).getModel();
-                List<Model> globalMarkets = Graph.load().getModelList(Association.Model.Market)
-                        .stream().filter(m -> m.getData().get(Constants.PARENT_MARKET_ID) == null)
-                        .sorted(Comparator.comparing(e -> e.getName()))
-                        .collect(Collectors.toList());
+                List<Model> globalMarkets;
+                if(engine.equals(MarketRollup.Engine.sql)) {
+                    globalMarkets = rollups.values().stream().filter(m -> m.getParentId() == null)
+                            .map(MarketRollup::toModel)
+                            .sorted(Comparator.comparing(e -> e.getName()))
+                            .collect(Collectors.toList());
+                } else {
+                    Model company = Graph.load().findNode(Association.Model.Company, companyId).getModel();
+                    globalMarkets = Graph.load().getModelList(Association.Model.Market)
+                            .stream().filter(m -> m.getData().get(Constants.PARENT_MARKET_ID) == null)
+                            .sorted(Comparator.comparing(e -> e.getName()))
+                            .collect(Collectors.toList());
+                }
 
                 String html = div().withClass("col-12").with(
                         table().withClass("table table-striped").with(
@@ -1579,7 +1715,13 @@ public class Main {
                                         )
                                 ), tbody().with(
                                         globalMarkets.stream().flatMap(market -> {
-                                            double revenue = market.calculateRevenue(Model.RevenueDomain.global, null, startYear, endYear, useCAGR, estimateCagr, missingRevenueOption, null, false, discountRate, companyId, marketDepth);
+                                            double revenue;
+                                            if(engine.equals(MarketRollup.Engine.sql)) {
+                                                revenue = rollups.get(market.getId()).getRevenue();
+                                            } else {
+                                                revenue = market.calculateRevenue(Model.RevenueDomain.global, null, startYear, endYear, useCAGR, estimateCagr, missingRevenueOption, null, false, discountRate, companyId, marketDepth);
+                                                javaRevenues.put(market.getId(), revenue);
+                                            }
                                             List<ContainerTag> rows = new ArrayList<>();
                                             rows.add(
                                                     tr().with(
@@ -1594,14 +1736,26 @@ public class Main {
                                                             td()
                                                     )
                                             );
-                                            market.loadAssociations();
-                                            Association assoc = market.findAssociation("Sub Market");
-                                            List<Model> subMarkets = market.getAssociations().get(assoc);
+                                            List<Model> subMarkets;
+                                            if(engine.equals(MarketRollup.Engine.sql)) {
+                                                subMarkets = rollups.get(market.getId()).getSubMarkets().stream()
+                                                        .map(MarketRollup::toModel).collect(Collectors.toList());
+                                            } else {
+                                                market.loadAssociations();
+                                                Association assoc = market.findAssociation("Sub Market");
+                                                subMarkets = market.getAssociations().get(assoc);
+                                            }
                                             if (subMarkets != null) {
                                                 subMarkets = subMarkets.stream().sorted(Comparator.comparing(e -> e.getName()))
                                                         .collect(Collectors.toList());
                                                 for (Model subMarket : subMarkets) {
-                                                    double subRevenue = subMarket.calculateRevenue(Model.RevenueDomain.global, null, startYear, endYear, useCAGR, estimateCagr, missingRevenueOption, revenue, true, discountRate, companyId, marketDepth);
+                                                    double subRevenue;
+                                                    if(engine.equals(MarketRollup.Engine.sql)) {
+                                                        subRevenue = rollups.get(subMarket.getId()).getRevenue();
+                                                    } else {
+                                                        subRevenue = subMarket.calculateRevenue(Model.RevenueDomain.global, null, startYear, endYear, useCAGR, estimateCagr, missingRevenueOption, revenue, true, discountRate, companyId, marketDepth);
+                                                        javaRevenues.put(subMarket.getId(), subRevenue);
+                                                    }
                                                     rows.add(tr().with(
                                                             td(),
                                                             td(),
@@ -1620,7 +1774,13 @@ public class Main {
                                 )
                         )
                 ).render();
-                return new Gson().toJson(Collections.singletonMap("result", html));
+                Map<String,Object> response = new HashMap<>();
+                response.put("result", html);
+                if(engine.equals(MarketRollup.Engine.compare)) {
+                    List<MarketRollup> compared = javaRevenues.keySet().stream().map(rollups::get).filter(Objects::nonNull).collect(Collectors.toList());
+                    response.put("engine_mismatches", MarketRollup.compare(compared, rollup -> javaRevenues.get(rollup.getId())));
+                }
+                return new Gson().toJson(response);
             } catch(Exception e) {
                 e.printStackTrace();
                 return new Gson().toJson(Collections.singletonMap("error", e.getMessage()));
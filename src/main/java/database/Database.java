@@ -1,43 +1,191 @@
 package database;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import lombok.Getter;
 import lombok.NonNull;
 import models.*;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.sql.*;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class Database {
-    private static final String dbUrl = "jdbc:postgresql://localhost/companydb?user=postgres&password=password&tcpKeepAlive=true";
+    private static final String dbUrl = System.getProperty("db.url", "jdbc:postgresql://localhost/companydb?user=postgres&password=password&tcpKeepAlive=true");
+    private static final int minIdleConnections = Integer.getInteger("db.pool.min_idle", 2);
+    private static final int maxConnections = Integer.getInteger("db.pool.max_size", 16);
+    private static final long connectionTimeoutMs = Long.getLong("db.pool.connection_timeout_ms", 30000L);
+    private static final int insertBatchSize = Integer.getInteger("db.insert.batch_size", 500);
+    private static final int copyThreshold = Integer.getInteger("db.insert.copy_threshold", 5000);
+    private static final int selectFetchSize = Integer.getInteger("db.select.fetch_size", 1000);
 
+    // how selectAll loads requested associations:
+    //  ARRAY_AGG - a single query with left joins, grouped and aggregated into arrays by postgres
+    //  MERGE - one query per associated table ordered by parent id, merged with the base rows in java
+    public enum JoinStrategy {
+        ARRAY_AGG,
+        MERGE
+    }
     @Getter
-    private static Connection conn;
+    private static final JoinStrategy defaultJoinStrategy = JoinStrategy.valueOf(System.getProperty("db.select.join_strategy", JoinStrategy.ARRAY_AGG.toString()));
+
+    private static final HikariDataSource dataSource;
+    private static final LongAdder connectionRequests = new LongAdder();
+    private static final LongAdder connectionWaitNanos = new LongAdder();
+    private static final AtomicLong maxConnectionWaitNanos = new AtomicLong(0L);
     static {
-        resetConn();
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("companydb");
+        config.setJdbcUrl(dbUrl);
+        config.setMinimumIdle(minIdleConnections);
+        config.setMaximumPoolSize(maxConnections);
+        config.setConnectionTimeout(connectionTimeoutMs);
+        config.setAutoCommit(true);
+        // broken connections fail validation and are replaced by the pool, so a dropped
+        // database connection no longer needs to be reset by hand
+        config.setValidationTimeout(5000L);
+        // keep starting up if the database is not reachable yet (matches the old behaviour)
+        config.setInitializationFailTimeout(-1L);
+        config.setRegisterMbeans(true);
+        // per-connection LRU cache of prepared statements keyed by sql, switching to a named
+        // server-side prepared statement once the same sql has been executed prepareThreshold times
+        config.addDataSourceProperty("prepareThreshold", Integer.getInteger("db.statement_cache.prepare_threshold", 3));
+        config.addDataSourceProperty("preparedStatementCacheQueries", Integer.getInteger("db.statement_cache.size", 512));
+        config.addDataSourceProperty("preparedStatementCacheSizeMiB", Integer.getInteger("db.statement_cache.size_mib", 16));
+        // lets the driver turn a batch of single-row inserts into multi-row insert statements
+        config.addDataSourceProperty("reWriteBatchedInserts", true);
+        dataSource = new HikariDataSource(config);
+    }
+
+    // generated sql, computed once per statement shape (kind, table, attribute set). Reusing the exact
+    // same string is also what lets the driver's statement cache above find the prepared statement again.
+    private static final Map<List<Object>,Object> sqlShapes = new ConcurrentHashMap<>();
+
+    private static final class SqlShape {
+        private final String sql;
+        private final List<String> columns;
+        private SqlShape(String sql, List<String> columns) {
+            this.sql=sql;
+            this.columns=columns;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T sqlShapeFor(Supplier<T> builder, Object... keyParts) {
+        T shape = (T) sqlShapes.get(Arrays.asList(keyParts));
+        if(shape==null) {
+            // copy collections so that a caller reusing its list cannot change the key later on
+            List<Object> key = new ArrayList<>(keyParts.length);
+            for(Object part : keyParts) {
+                if(part instanceof Set) {
+                    key.add(new HashSet<>((Set<?>) part));
+                } else if(part instanceof Collection) {
+                    key.add(new ArrayList<>((Collection<?>) part));
+                } else {
+                    key.add(part);
+                }
+            }
+            shape = builder.get();
+            T existing = (T) sqlShapes.putIfAbsent(key, shape);
+            if(existing!=null) {
+                shape = existing;
+            }
+        }
+        return shape;
+    }
+
+    private static Set<String> dateKeys(Map<String,Object> data) {
+        Set<String> dateKeys = null;
+        for(Map.Entry<String,Object> e : data.entrySet()) {
+            if(e.getValue() instanceof LocalDate) {
+                if(dateKeys==null) dateKeys = new HashSet<>();
+                dateKeys.add(e.getKey());
+            }
+        }
+        return dateKeys == null ? Collections.emptySet() : dateKeys;
     }
 
-    public static synchronized void resetConn() {
-        try {
-            conn = DriverManager.getConnection(dbUrl);
-            conn.setAutoCommit(true);
-        } catch(Exception e) {
-            e.printStackTrace();
+    private static Object toSqlValue(Object value) {
+        if(value instanceof LocalDate) {
+            return ((LocalDate) value).format(DateTimeFormatter.ISO_DATE);
         }
+        return value;
     }
 
-    public static synchronized Integer insert(@NonNull String tableName, Map<String,Object> data) throws SQLException {
-        data = new HashMap<>(data);
-        List<String> keys = new ArrayList<>(data.keySet());
+    // callers must close the returned connection to hand it back to the pool
+    public static Connection getConnection() throws SQLException {
+        final long start = System.nanoTime();
+        Connection conn = dataSource.getConnection();
+        final long waited = System.nanoTime() - start;
+        connectionRequests.increment();
+        connectionWaitNanos.add(waited);
+        maxConnectionWaitNanos.accumulateAndGet(waited, Math::max);
+        QueryStats.addConnectionWait(waited);
+        return conn;
+    }
+
+    public static Map<String,Object> getPoolStats() {
+        Map<String,Object> stats = new LinkedHashMap<>();
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        stats.put("active_connections", pool == null ? 0 : pool.getActiveConnections());
+        stats.put("idle_connections", pool == null ? 0 : pool.getIdleConnections());
+        stats.put("total_connections", pool == null ? 0 : pool.getTotalConnections());
+        stats.put("threads_awaiting_connection", pool == null ? 0 : pool.getThreadsAwaitingConnection());
+        stats.put("min_idle", minIdleConnections);
+        stats.put("max_size", maxConnections);
+        long requests = connectionRequests.sum();
+        double totalWaitMs = connectionWaitNanos.sum() / 1e6;
+        stats.put("connection_requests", requests);
+        stats.put("total_wait_ms", totalWaitMs);
+        stats.put("avg_wait_ms", requests == 0 ? 0d : totalWaitMs / requests);
+        stats.put("max_wait_ms", maxConnectionWaitNanos.get() / 1e6);
+        return stats;
+    }
+
+    public static Integer insert(@NonNull String tableName, Map<String,Object> data) throws SQLException {
+        final Set<String> dateKeys = dateKeys(data);
+        SqlShape shape = sqlShapeFor(() -> {
+            List<String> keys = new ArrayList<>(data.keySet());
+            return new SqlShape("insert into "+tableName+" ("+String.join(",",keys)+") values ("+ insertPlaceholders(keys, dateKeys) + ") returning id", keys);
+        }, "insert", tableName, data.keySet(), dateKeys);
+        try(QueryStats.Timer timer = QueryStats.time("insert", tableName, shape.sql);
+            Connection conn = getConnection();
+            PreparedStatement ps = conn.prepareStatement(shape.sql)) {
+            for (int i = 0; i < shape.columns.size(); i++) {
+                ps.setObject(i + 1, toSqlValue(data.get(shape.columns.get(i))));
+            }
+            ps.execute();
+            Integer id = null;
+            try (ResultSet rs = ps.getResultSet()) {
+                if (rs.next()) {
+                    id = rs.getInt(1);
+                    timer.addRows(1);
+                }
+            }
+            timer.success();
+            return id;
+        }
+    }
+
+    private static String insertPlaceholders(List<String> keys, Set<String> dateKeys) {
         List<String> qs = new ArrayList<>(keys.size());
         for(int i = 0; i < keys.size(); i++) {
-            if(data.get(keys.get(i)) != null && data.get(keys.get(i)) instanceof LocalDate) {
+            if(dateKeys.contains(keys.get(i))) {
                 qs.add("?::date");
-                data.put(keys.get(i), ((LocalDate) data.get(keys.get(i))).format(DateTimeFormatter.ISO_DATE));
             } else {
                 if(keys.get(i).equals(Constants.VALUE) || keys.get(i).equals(Constants.CAGR)) {
                     qs.add("?::double precision");
@@ -53,131 +201,226 @@ public class Database {
                 }
             }
         }
-        PreparedStatement ps = conn.prepareStatement("insert into "+tableName+" ("+String.join(",",keys)+") values ("+ String.join(",",qs) + ") returning id");
-        for(int i = 0; i < keys.size(); i++) {
-            ps.setObject(i+1, data.get(keys.get(i)));
+        return String.join(",",qs);
+    }
+
+    // inserts all the rows in a single transaction and returns the generated ids in the same order as the rows.
+    // small loads go through a jdbc batch (rewritten by the driver into multi-row inserts), large loads through COPY.
+    public static List<Integer> insertAll(@NonNull String tableName, @NonNull List<Map<String,Object>> rows) throws SQLException {
+        Integer[] ids = new Integer[rows.size()];
+        if(rows.isEmpty()) return Arrays.asList(ids);
+        // rows are grouped by their set of columns so that missing columns keep their database defaults
+        Map<List<Object>,List<Integer>> rowIdxByShape = new LinkedHashMap<>();
+        for(int i = 0; i < rows.size(); i++) {
+            Map<String,Object> row = rows.get(i);
+            rowIdxByShape.computeIfAbsent(Arrays.asList(row.keySet(), dateKeys(row)), k -> new ArrayList<>()).add(i);
         }
-        ps.execute();
-        ResultSet rs = ps.getResultSet();
-        Integer id = null;
-        if(rs.next()) {
-            id = rs.getInt(1);
+        try(Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                for(List<Integer> rowIdxs : rowIdxByShape.values()) {
+                    if(rowIdxs.size() >= copyThreshold) {
+                        copyRows(conn, tableName, rows, rowIdxs, ids);
+                    } else {
+                        batchInsertRows(conn, tableName, rows, rowIdxs, ids);
+                    }
+                }
+                conn.commit();
+            } catch(SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
         }
-        rs.close();
-        ps.close();
-        return id;
+        return Arrays.asList(ids);
     }
 
+    private static void batchInsertRows(Connection conn, String tableName, List<Map<String,Object>> rows, List<Integer> rowIdxs, Integer[] ids) throws SQLException {
+        final Map<String,Object> first = rows.get(rowIdxs.get(0));
+        final Set<String> dateKeys = dateKeys(first);
+        SqlShape shape = sqlShapeFor(() -> {
+            List<String> keys = new ArrayList<>(first.keySet());
+            return new SqlShape("insert into "+tableName+" ("+String.join(",",keys)+") values ("+ insertPlaceholders(keys, dateKeys) + ")", keys);
+        }, "insertBatch", tableName, first.keySet(), dateKeys);
+        try(QueryStats.Timer timer = QueryStats.time("insertBatch", tableName, shape.sql);
+            PreparedStatement ps = conn.prepareStatement(shape.sql, new String[]{"id"})) {
+            for(int start = 0; start < rowIdxs.size(); start += insertBatchSize) {
+                List<Integer> chunk = rowIdxs.subList(start, Math.min(rowIdxs.size(), start + insertBatchSize));
+                for(Integer rowIdx : chunk) {
+                    Map<String,Object> row = rows.get(rowIdx);
+                    for (int i = 0; i < shape.columns.size(); i++) {
+                        ps.setObject(i + 1, toSqlValue(row.get(shape.columns.get(i))));
+                    }
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                // generated keys come back in the order the rows were added
+                try(ResultSet rs = ps.getGeneratedKeys()) {
+                    int i = 0;
+                    while(rs.next() && i < chunk.size()) {
+                        ids[chunk.get(i)] = rs.getInt(1);
+                        i++;
+                    }
+                    if(i < chunk.size()) {
+                        throw new SQLException("Expected "+chunk.size()+" generated ids from "+tableName+" but received "+i);
+                    }
+                }
+                timer.addRows(chunk.size());
+            }
+            timer.success();
+        }
+    }
+
+    private static void copyRows(Connection conn, String tableName, List<Map<String,Object>> rows, List<Integer> rowIdxs, Integer[] ids) throws SQLException {
+        // COPY does not return anything, so the ids are taken from the table's sequence up front
+        try(PreparedStatement ps = conn.prepareStatement("select nextval(pg_get_serial_sequence(?, 'id')) from generate_series(1, ?)")) {
+            ps.setString(1, tableName);
+            ps.setInt(2, rowIdxs.size());
+            try(ResultSet rs = ps.executeQuery()) {
+                int i = 0;
+                while(rs.next()) {
+                    ids[rowIdxs.get(i)] = rs.getInt(1);
+                    i++;
+                }
+            }
+        }
+        List<String> keys = new ArrayList<>(rows.get(rowIdxs.get(0)).keySet());
+        StringBuilder csv = new StringBuilder();
+        for(Integer rowIdx : rowIdxs) {
+            Map<String,Object> row = rows.get(rowIdx);
+            csv.append(ids[rowIdx]);
+            for(String key : keys) {
+                csv.append(',');
+                Object value = toSqlValue(row.get(key));
+                if(value!=null) {
+                    // quoted so that an empty string is not read back as null
+                    csv.append('"').append(value.toString().replace("\"", "\"\"")).append('"');
+                }
+            }
+            csv.append('\n');
+        }
+        String copySql = "copy "+tableName+" (id,"+String.join(",",keys)+") from stdin with (format csv)";
+        try(QueryStats.Timer timer = QueryStats.time("copy", tableName, copySql)) {
+            CopyManager copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+            timer.addRows(copyManager.copyIn(copySql, new StringReader(csv.toString())));
+            timer.success();
+        } catch(IOException e) {
+            throw new SQLException("Error copying rows into "+tableName, e);
+        }
+    }
 
-    public static synchronized List<Model> loadOneToManyAssociation(@NonNull Association.Model associationType, @NonNull Model baseModel, @NonNull String associationTableName, @NonNull String parentIdField) throws SQLException {
+    public static List<Model> loadOneToManyAssociation(@NonNull Association.Model associationType, @NonNull Model baseModel, @NonNull String associationTableName, @NonNull String parentIdField) throws SQLException {
         if(!baseModel.existsInDatabase()) {
             System.out.println("Trying to load association of model that does not exist in the database.");
         }
-        PreparedStatement ps = conn.prepareStatement("select id from "+associationTableName+" where "+parentIdField+"=?");
-        ps.setObject(1, baseModel.getId());
-        ResultSet rs = ps.executeQuery();
         List<Model> models = new ArrayList<>();
-        while(rs.next()) {
-            final int id = rs.getInt(1);
-            switch(associationType) {
-                case Company: {
-                    models.add(new Company(id, null));
-                    break;
-                }
-                case Market: {
-                    models.add(new Market(id, null));
-                    break;
-                }
-                case Product: {
-                    models.add(new Product(id, null));
-                    break;
-                }
-                case ProductRevenue: {
-                    models.add(new ProductRevenue(id, null));
-                    break;
-                }
-                case CompanyRevenue: {
-                    models.add(new CompanyRevenue(id, null));
-                    break;
-                }
-                case MarketRevenue: {
-                    models.add(new MarketRevenue(id, null));
-                    break;
-                }
-                case MarketShareRevenue: {
-                    models.add(new MarketShareRevenue(id, null));
-                    break;
-                }
-                case Region: {
-                    models.add(new Region(id, null));
-                    break;
+        try(Connection conn = getConnection();
+            PreparedStatement ps = conn.prepareStatement("select id from "+associationTableName+" where "+parentIdField+"=?")) {
+            ps.setObject(1, baseModel.getId());
+            ResultSet rs = ps.executeQuery();
+            while(rs.next()) {
+                final int id = rs.getInt(1);
+                switch(associationType) {
+                    case Company: {
+                        models.add(new Company(id, null));
+                        break;
+                    }
+                    case Market: {
+                        models.add(new Market(id, null));
+                        break;
+                    }
+                    case Product: {
+                        models.add(new Product(id, null));
+                        break;
+                    }
+                    case ProductRevenue: {
+                        models.add(new ProductRevenue(id, null));
+                        break;
+                    }
+                    case CompanyRevenue: {
+                        models.add(new CompanyRevenue(id, null));
+                        break;
+                    }
+                    case MarketRevenue: {
+                        models.add(new MarketRevenue(id, null));
+                        break;
+                    }
+                    case MarketShareRevenue: {
+                        models.add(new MarketShareRevenue(id, null));
+                        break;
+                    }
+                    case Region: {
+                        models.add(new Region(id, null));
+                        break;
+                    }
                 }
             }
+            rs.close();
         }
-        rs.close();
-        ps.close();
         return models;
     }
 
-    public static synchronized Map<Model, Map<String,Object>> loadManyToManyAssociation(@NonNull Association.Model associationType, @NonNull Model baseModel, @NonNull String joinTableName, @NonNull String parentIdField, @NonNull String childIdField, List<String> joinAttributes) throws SQLException {
+    public static Map<Model, Map<String,Object>> loadManyToManyAssociation(@NonNull Association.Model associationType, @NonNull Model baseModel, @NonNull String joinTableName, @NonNull String parentIdField, @NonNull String childIdField, List<String> joinAttributes) throws SQLException {
         if(!baseModel.existsInDatabase()) {
             System.out.println("Trying to load association of model that does not exist in the database.");
         }
         String select = joinAttributes==null||joinAttributes.isEmpty() ? childIdField : (childIdField+","+String.join(",",joinAttributes));
-        PreparedStatement ps = conn.prepareStatement("select "+select+" from "+joinTableName+" where "+parentIdField+"=?");
-        ps.setObject(1, baseModel.getId());
-        ResultSet rs = ps.executeQuery();
         Map<Model, Map<String,Object>> models = new HashMap<>();
-        while(rs.next()) {
-            final int id = rs.getInt(1);
-            Map<String,Object> joinData = new HashMap<>();
-            if(joinAttributes!=null) {
-                for(int i = 0; i < joinAttributes.size(); i++) {
-                    String attr = joinAttributes.get(i);
-                    joinData.put(attr, rs.getObject(2+i));
-                }
-            }
-            switch(associationType) {
-                case Company: {
-                    models.put(new Company(id, null), joinData);
-                    break;
-                }
-                case Market: {
-                    models.put(new Market(id, null), joinData);
-                    break;
-                }
-                case Product: {
-                    models.put(new Product(id, null), joinData);
-                    break;
-                }
-                case CompanyRevenue: {
-                    models.put(new CompanyRevenue(id, null), joinData);
-                    break;
-                }
-                case MarketRevenue: {
-                    models.put(new MarketRevenue(id, null), joinData);
-                    break;
-                }
-                case ProductRevenue: {
-                    models.put(new ProductRevenue(id, null), joinData);
-                    break;
-                }
-                case MarketShareRevenue: {
-                    models.put(new MarketShareRevenue(id, null), joinData);
-                    break;
+        try(Connection conn = getConnection();
+            PreparedStatement ps = conn.prepareStatement("select "+select+" from "+joinTableName+" where "+parentIdField+"=?")) {
+            ps.setObject(1, baseModel.getId());
+            ResultSet rs = ps.executeQuery();
+            while(rs.next()) {
+                final int id = rs.getInt(1);
+                Map<String,Object> joinData = new HashMap<>();
+                if(joinAttributes!=null) {
+                    for(int i = 0; i < joinAttributes.size(); i++) {
+                        String attr = joinAttributes.get(i);
+                        joinData.put(attr, rs.getObject(2+i));
+                    }
                 }
-                case Region: {
-                    models.put(new Region(id, null), joinData);
-                    break;
+                switch(associationType) {
+                    case Company: {
+                        models.put(new Company(id, null), joinData);
+                        break;
+                    }
+                    case Market: {
+                        models.put(new Market(id, null), joinData);
+                        break;
+                    }
+                    case Product: {
+                        models.put(new Product(id, null), joinData);
+                        break;
+                    }
+                    case CompanyRevenue: {
+                        models.put(new CompanyRevenue(id, null), joinData);
+                        break;
+                    }
+                    case MarketRevenue: {
+                        models.put(new MarketRevenue(id, null), joinData);
+                        break;
+                    }
+                    case ProductRevenue: {
+                        models.put(new ProductRevenue(id, null), joinData);
+                        break;
+                    }
+                    case MarketShareRevenue: {
+                        models.put(new MarketShareRevenue(id, null), joinData);
+                        break;
+                    }
+                    case Region: {
+                        models.put(new Region(id, null), joinData);
+                        break;
+                    }
                 }
             }
+            rs.close();
         }
-        rs.close();
-        ps.close();
         return models;
     }
 
-    public static synchronized Model loadManyToOneAssociation(@NonNull Association.Model associationType, @NonNull Model baseModel, @NonNull String associationTableName, @NonNull String parentIdField) throws SQLException {
+    public static Model loadManyToOneAssociation(@NonNull Association.Model associationType, @NonNull Model baseModel, @NonNull String associationTableName, @NonNull String parentIdField) throws SQLException {
         if(!baseModel.existsInDatabase()) {
             System.out.println("Trying to load association of model that does not exist in the database.");
         }
@@ -223,74 +466,305 @@ public class Database {
         return model;
     }
 
-    public static synchronized void update(@NonNull String tableName, int id, Map<String,Object> data, @NonNull List<String> keys) throws SQLException {
-        data = new HashMap<>(data);
-        List<String> qs = new ArrayList<>(keys.size());
-        for(int i = 0; i < keys.size(); i++) {
-            if(data.get(keys.get(i)) != null && data.get(keys.get(i)) instanceof LocalDate) {
-                qs.add("?::date");
-                data.put(keys.get(i), ((LocalDate) data.get(keys.get(i))).format(DateTimeFormatter.ISO_DATE));
-            } else {
-                qs.add("?");
-            }
+    // writes made inside a UnitOfWork are queued and flushed together when it completes
+    public static void update(@NonNull String tableName, int id, Map<String,Object> data, @NonNull List<String> keys) throws SQLException {
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if(unitOfWork!=null) {
+            unitOfWork.addUpdate(tableName, id, data, keys);
+            return;
         }
-        PreparedStatement ps = conn.prepareStatement("update "+tableName+" set ("+String.join(",",keys)+",updated_at) = ("+ String.join(",",qs) + ",now()) where id=?");
-        for(int i = 0; i < keys.size(); i++) {
-            ps.setObject(i+1, data.get(keys.get(i)));
+        try(Connection conn = getConnection()) {
+            update(conn, tableName, id, data, keys);
+        } finally {
+            RowCache.invalidate(tableName, id);
         }
-        ps.setObject(keys.size()+1, id);
-        ps.executeUpdate();
-        ps.close();
     }
 
-    public static synchronized void delete(@NonNull String tableName, int id) throws SQLException {
+    static void update(Connection conn, String tableName, int id, Map<String,Object> data, List<String> keys) throws SQLException {
+        final Set<String> dateKeys = dateKeys(data);
+        SqlShape shape = sqlShapeFor(() -> {
+            List<String> qs = new ArrayList<>(keys.size());
+            for(int i = 0; i < keys.size(); i++) {
+                if(dateKeys.contains(keys.get(i))) {
+                    qs.add("?::date");
+                } else {
+                    qs.add("?");
+                }
+            }
+            return new SqlShape("update "+tableName+" set ("+String.join(",",keys)+",updated_at) = ("+ String.join(",",qs) + ",now()) where id=?", new ArrayList<>(keys));
+        }, "update", tableName, keys, dateKeys);
+        try(QueryStats.Timer timer = QueryStats.time("update", tableName, shape.sql);
+            PreparedStatement ps = conn.prepareStatement(shape.sql)) {
+            for (int i = 0; i < shape.columns.size(); i++) {
+                ps.setObject(i + 1, toSqlValue(data.get(shape.columns.get(i))));
+            }
+            ps.setObject(shape.columns.size() + 1, id);
+            timer.addRows(ps.executeUpdate());
+            timer.success();
+        }
+    }
+
+    public static void delete(@NonNull String tableName, int id) throws SQLException {
         deleteByFieldName(tableName, "id", id);
     }
 
-    public static synchronized void deleteByFieldName(@NonNull String tableName, @NonNull String fieldName, int id) throws SQLException {
-        PreparedStatement ps = conn.prepareStatement("delete from "+tableName+" where "+fieldName+"=?");
-        ps.setObject(1, id);
-        ps.executeUpdate();
-        ps.close();
+    public static void deleteByFieldName(@NonNull String tableName, @NonNull String fieldName, int id) throws SQLException {
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if(unitOfWork!=null) {
+            unitOfWork.addDelete(tableName, fieldName, id);
+            return;
+        }
+        try(Connection conn = getConnection()) {
+            deleteByFieldName(conn, tableName, fieldName, Collections.singleton(id));
+        } finally {
+            // foreign keys cascade or set null on delete, which can change cached rows of other tables too
+            RowCache.clear();
+        }
+    }
+
+    static void deleteByFieldName(Connection conn, String tableName, String fieldName, Collection<Integer> ids) throws SQLException {
+        if(ids.size()==1) {
+            String sql = sqlShapeFor(() -> "delete from "+tableName+" where "+fieldName+"=?", "delete", tableName, fieldName);
+            try(QueryStats.Timer timer = QueryStats.time("delete", tableName, sql);
+                PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setObject(1, ids.iterator().next());
+                timer.addRows(ps.executeUpdate());
+                timer.success();
+            }
+        } else {
+            String sql = sqlShapeFor(() -> "delete from "+tableName+" where "+fieldName+" = any(?)", "deleteMany", tableName, fieldName);
+            executeForIds(conn, "deleteMany", tableName, sql, ids);
+        }
     }
 
-    public static synchronized void nullifyFieldName(@NonNull String tableName, @NonNull String fieldName, int id) throws SQLException {
-        PreparedStatement ps = conn.prepareStatement("update "+tableName+" set "+fieldName+"=null where id = ?");
-        ps.setObject(1, id);
-        ps.executeUpdate();
-        ps.close();
+    public static void nullifyFieldName(@NonNull String tableName, @NonNull String fieldName, int id) throws SQLException {
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if(unitOfWork!=null) {
+            unitOfWork.addNullify(tableName, fieldName, id);
+            return;
+        }
+        try(Connection conn = getConnection()) {
+            nullifyFieldName(conn, tableName, fieldName, Collections.singleton(id));
+        } finally {
+            RowCache.invalidate(tableName, id);
+        }
     }
 
-    public static synchronized Map<String,Object> select(@NonNull String tableName, int id, @NonNull Collection<String> attributes) throws SQLException {
-        List<String> attrList = new ArrayList<>(new HashSet<>(attributes));
-        PreparedStatement ps = conn.prepareStatement("select "+String.join(",", attrList)+" from "+tableName+" where id=?");
-        ps.setObject(1, id);
-        ResultSet rs = ps.executeQuery();
+    static void nullifyFieldName(Connection conn, String tableName, String fieldName, Collection<Integer> ids) throws SQLException {
+        if(ids.size()==1) {
+            String sql = sqlShapeFor(() -> "update "+tableName+" set "+fieldName+"=null where id = ?", "nullify", tableName, fieldName);
+            try(QueryStats.Timer timer = QueryStats.time("nullify", tableName, sql);
+                PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setObject(1, ids.iterator().next());
+                timer.addRows(ps.executeUpdate());
+                timer.success();
+            }
+        } else {
+            String sql = sqlShapeFor(() -> "update "+tableName+" set "+fieldName+"=null where id = any(?)", "nullifyMany", tableName, fieldName);
+            executeForIds(conn, "nullifyMany", tableName, sql, ids);
+        }
+    }
+
+    private static void executeForIds(Connection conn, String kind, String tableName, String sql, Collection<Integer> ids) throws SQLException {
+        try(QueryStats.Timer timer = QueryStats.time(kind, tableName, sql);
+            PreparedStatement ps = conn.prepareStatement(sql)) {
+            Array idArray = conn.createArrayOf("integer", ids.toArray(new Integer[ids.size()]));
+            try {
+                ps.setArray(1, idArray);
+                timer.addRows(ps.executeUpdate());
+            } finally {
+                idArray.free();
+            }
+            timer.success();
+        }
+    }
+
+    public static Map<String,Object> select(@NonNull String tableName, int id, @NonNull Collection<String> attributes) throws SQLException {
+        SqlShape shape = sqlShapeFor(() -> {
+            List<String> attrList = new ArrayList<>(new HashSet<>(attributes));
+            return new SqlShape("select "+String.join(",", attrList)+" from "+tableName+" where id=?", attrList);
+        }, "select", tableName, attributes);
+        Map<String,Object> cached = RowCache.get(tableName, id, shape.columns);
+        if(cached!=null) {
+            return cached;
+        }
+        final long cacheVersion = RowCache.version(tableName, id);
         Map<String,Object> data = new HashMap<>(attributes.size());
-        if(rs.next()) {
-            for(int i = 0; i < attrList.size(); i++) {
-                data.put(attrList.get(i), rs.getObject(i+1));
+        try(QueryStats.Timer timer = QueryStats.time("select", tableName, shape.sql);
+            Connection conn = getConnection();
+            PreparedStatement ps = conn.prepareStatement(shape.sql)) {
+            timer.lookup(id);
+            ps.setObject(1, id);
+            try(ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    for (int i = 0; i < shape.columns.size(); i++) {
+                        data.put(shape.columns.get(i), rs.getObject(i + 1));
+                    }
+                    timer.addRows(1);
+                    RowCache.put(tableName, id, data, cacheVersion);
+                }
             }
+            timer.success();
         }
-        rs.close();
-        ps.close();
         return data;
     }
 
-    public static synchronized Integer findIdByName(@NonNull String tableName, @NonNull String name) throws SQLException {
-        PreparedStatement ps = conn.prepareStatement("select id from "+tableName+" where name=? limit 1");
-        ps.setObject(1, name);
-        ResultSet rs = ps.executeQuery();
+    public static Map<Integer,Map<String,Object>> selectMany(@NonNull String tableName, @NonNull Collection<Integer> ids, @NonNull Collection<String> attributes) throws SQLException {
+        Map<Integer,Map<String,Object>> rows = new HashMap<>(ids.size());
+        if(ids.isEmpty()) {
+            return rows;
+        }
+        SqlShape shape = sqlShapeFor(() -> {
+            List<String> attrList = new ArrayList<>(new HashSet<>(attributes));
+            attrList.remove("id");
+            String columns = attrList.isEmpty() ? "id" : ("id,"+String.join(",", attrList));
+            return new SqlShape("select "+columns+" from "+tableName+" where id = any(?)", attrList);
+        }, "selectMany", tableName, attributes);
+        Map<Integer,Long> cacheVersions = new HashMap<>();
+        for(Integer id : ids) {
+            Map<String,Object> cached = RowCache.get(tableName, id, shape.columns);
+            if(cached!=null) {
+                rows.put(id, cached);
+            } else {
+                cacheVersions.put(id, RowCache.version(tableName, id));
+            }
+        }
+        if(cacheVersions.isEmpty()) {
+            return rows;
+        }
+        try(QueryStats.Timer timer = QueryStats.time("selectMany", tableName, shape.sql);
+            Connection conn = getConnection();
+            PreparedStatement ps = conn.prepareStatement(shape.sql)) {
+            Array idArray = conn.createArrayOf("integer", cacheVersions.keySet().toArray(new Integer[cacheVersions.size()]));
+            ps.setArray(1, idArray);
+            try(ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Map<String,Object> data = new HashMap<>(attributes.size());
+                    for (int i = 0; i < shape.columns.size(); i++) {
+                        data.put(shape.columns.get(i), rs.getObject(i + 2));
+                    }
+                    int id = rs.getInt(1);
+                    rows.put(id, data);
+                    RowCache.put(tableName, id, data, cacheVersions.get(id));
+                    timer.addRows(1);
+                }
+            } finally {
+                idArray.free();
+            }
+            timer.success();
+        }
+        return rows;
+    }
+
+    public static Integer findIdByName(@NonNull String tableName, @NonNull String name) throws SQLException {
         Integer id = null;
-        if(rs.next()) {
-            id = rs.getInt(1);
+        String sql = sqlShapeFor(() -> "select id from "+tableName+" where name=? limit 1", "findIdByName", tableName);
+        try(QueryStats.Timer timer = QueryStats.time("findIdByName", tableName, sql);
+            Connection conn = getConnection();
+            PreparedStatement ps = conn.prepareStatement(sql)) {
+            timer.lookup(name);
+            ps.setObject(1, name);
+            try(ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    id = rs.getInt(1);
+                    timer.addRows(1);
+                }
+            }
+            timer.success();
         }
-        rs.close();
-        ps.close();
         return id;
     }
 
-    private static void selectAllHelper(String parentPrefix, String prefix, List<Association> associations, Map<String,Association> prefixToAssocMap, Collection<String> joinAttrStrs, Collection<String> allJoins, Collection<String> groups, AtomicBoolean useGroups)  {
+    // one row per market in the subtrees below rootMarketId (or below every global market when null), with the totals of its
+    // own market revenues and market shares within the year window. Each revenue is resolved to the row of the requested
+    // region first (the same way Model.getSubRevenueByRegionId does), or read already resolved from revenue_rollups
+    // when that is up to date, and discounted back to startYear.
+    public static List<Map<String,Object>> selectMarketSubtreeRevenues(Integer rootMarketId, @NonNull Model.RevenueDomain revenueDomain, Integer regionId, int startYear, int endYear, double discountRate, Integer companyId) throws SQLException {
+        final boolean allGlobalMarkets = rootMarketId == null;
+        final boolean fromRollups = RevenueRollups.isReady();
+        String sql = sqlShapeFor(() -> "with recursive subtree (id, parent_market_id, name, depth) as (" +
+                " select id, parent_market_id, name, 0 from "+Constants.MARKET_TABLE+" where "+(allGlobalMarkets ? "parent_market_id is null" : "id = ?") +
+                " union all" +
+                " select m.id, m.parent_market_id, m.name, s.depth+1 from "+Constants.MARKET_TABLE+" m join subtree s on (m.parent_market_id=s.id)" +
+                "), nodes as (" +
+                " select s.id, s.parent_market_id, s.name, s.depth, exists(select 1 from "+Constants.COMPANY_MARKETS_JOIN_TABLE+" c where c.market_id=s.id and c.parent_revenue_id is null) as has_market_shares from subtree s" +
+                "), resolved (kind, market_id, year, value) as (" +
+                (fromRollups ?
+                " select v.kind, v.market_id, v.year, v.value from revenue_rollups v join subtree s on (v.market_id=s.id) where v.domain=? and v.region_id=?" +
+                " and v.kind in ('market_revenue','market_share') and v.year between ? and ? and (v.kind='market_revenue' or ?::integer is null or v.company_id=?)"
+                :
+                " select 'market_revenue', r.market_id, r.year, "+regionValueSql(Constants.MARKET_REVENUE_TABLE, revenueDomain)+" from "+Constants.MARKET_REVENUE_TABLE+" r join subtree s on (r.market_id=s.id) where r.parent_revenue_id is null and r.year between ? and ?" +
+                " union all" +
+                " select 'market_share', r.market_id, r.year, "+regionValueSql(Constants.COMPANY_MARKETS_JOIN_TABLE, revenueDomain)+" from "+Constants.COMPANY_MARKETS_JOIN_TABLE+" r join subtree s on (r.market_id=s.id) where r.parent_revenue_id is null and r.year between ? and ? and (?::integer is null or r.company_id=?)"
+                ) +
+                ") select n.id, n.parent_market_id, n.name, n.depth, n.has_market_shares, v.kind, count(v.value), sum(v.value / power(1.0 + ?/100.0, greatest(v.year - ?, 0)))" +
+                " from nodes n left outer join resolved v on (v.market_id=n.id)" +
+                " group by n.id, n.parent_market_id, n.name, n.depth, n.has_market_shares, v.kind" +
+                " order by n.depth, n.id", "marketSubtreeRevenues", allGlobalMarkets, revenueDomain, fromRollups);
+        int numRegionParams = revenueDomain.equals(Model.RevenueDomain.national) ? 2 : (revenueDomain.equals(Model.RevenueDomain.regional) ? 1 : 0);
+        List<Map<String,Object>> rows = new ArrayList<>();
+        try(QueryStats.Timer timer = QueryStats.time("marketSubtreeRevenues", Constants.MARKET_TABLE, sql);
+            Connection conn = getConnection();
+            PreparedStatement ps = conn.prepareStatement(sql)) {
+            int i = 1;
+            if(!allGlobalMarkets) {
+                ps.setInt(i++, rootMarketId);
+            }
+            if(fromRollups) {
+                ps.setString(i++, revenueDomain.toString());
+                ps.setInt(i++, regionId==null ? 0 : regionId);
+            } else {
+                for (int j = 0; j < numRegionParams; j++) {
+                    ps.setObject(i++, regionId);
+                }
+                ps.setInt(i++, startYear);
+                ps.setInt(i++, endYear);
+                for (int j = 0; j < numRegionParams; j++) {
+                    ps.setObject(i++, regionId);
+                }
+            }
+            ps.setInt(i++, startYear);
+            ps.setInt(i++, endYear);
+            ps.setObject(i++, companyId, Types.INTEGER);
+            ps.setObject(i++, companyId, Types.INTEGER);
+            ps.setDouble(i++, discountRate);
+            ps.setInt(i, startYear);
+            try(ResultSet rs = ps.executeQuery()) {
+                while(rs.next()) {
+                    Map<String,Object> row = new HashMap<>();
+                    row.put(Constants.MARKET_ID, rs.getInt(1));
+                    row.put(Constants.PARENT_MARKET_ID, rs.getObject(2));
+                    row.put(Constants.NAME, rs.getString(3));
+                    row.put("depth", rs.getInt(4));
+                    row.put("has_market_shares", rs.getBoolean(5));
+                    row.put("kind", rs.getString(6));
+                    row.put("count", rs.getInt(7));
+                    row.put(Constants.VALUE, rs.getDouble(8));
+                    rows.add(row);
+                    timer.addRows(1);
+                }
+            }
+            timer.success();
+        }
+        return rows;
+    }
+
+    private static String regionValueSql(String tableName, Model.RevenueDomain revenueDomain) {
+        switch (revenueDomain) {
+            case regional: {
+                return "(select c.value from "+tableName+" c where c.parent_revenue_id=r.id and c.year=r.year and c.region_id=? limit 1)";
+            }
+            case national: {
+                return "coalesce((select c.value from "+tableName+" c where c.parent_revenue_id=r.id and c.year=r.year and c.region_id=? limit 1)," +
+                        " (select g.value from "+tableName+" g join "+tableName+" c on (g.parent_revenue_id=c.id and g.year=c.year) where c.parent_revenue_id=r.id and c.year=r.year and g.region_id=? limit 1))";
+            }
+            default: {
+                return "r.value";
+            }
+        }
+    }
+
+    private static void selectAllHelper(String parentPrefix, String prefix, List<Association> associations, Map<String,Association> prefixToAssocMap, Collection<String> joinAttrStrs, Collection<String> allJoins, Collection<String> groups, AtomicBoolean useGroups, boolean yearWindow, AtomicInteger yearWindowJoins)  {
         for (int i = 0; i < associations.size(); i++) {
             Association association = associations.get(i);
             Model m = buildModelFromDataAndType(null, null, association.getModel());
@@ -301,12 +775,17 @@ public class Database {
                 if (m.isRevenueModel()) {
                     assocAttrList.remove(Constants.NAME);
                 }
+                String yearPredicate = "";
+                if (yearWindow && m.isRevenueModel()) {
+                    yearPredicate = " and " + j + ".year between ? and ?";
+                    yearWindowJoins.incrementAndGet();
+                }
                 if (association.getType().equals(Association.Type.ManyToOne)) {
-                    allJoins.add("left join " + association.getParentTableName() + " as " + j + " on (" + j + ".id="+parentPrefix+"." + association.getParentIdField() + ")");
+                    allJoins.add("left join " + association.getParentTableName() + " as " + j + " on (" + j + ".id="+parentPrefix+"." + association.getParentIdField() + yearPredicate + ")");
                     joinStr = j + ".id as "+j+"_id," + String.join(",", assocAttrList.stream().map(a -> j + "." + a + " as "+j+"_"+a).collect(Collectors.toList()));
                     groups.add(j + ".id");
                 } else if (association.getType().equals(Association.Type.OneToMany)) {
-                    allJoins.add("left join " + association.getChildTableName() + " as " + j + " on (" + j + "." + association.getParentIdField() + "="+parentPrefix+".id)");
+                    allJoins.add("left join " + association.getChildTableName() + " as " + j + " on (" + j + "." + association.getParentIdField() + "="+parentPrefix+".id" + yearPredicate + ")");
                     joinStr = "array_agg(" + j + ".id) as "+j+"_id," + String.join(",", assocAttrList.stream().map(a -> "array_agg(" + j + "." + a + ") as "+j+"_"+a).collect(Collectors.toList()));
                     groups.add(parentPrefix + ".id");
                     useGroups.set(true);
@@ -319,22 +798,60 @@ public class Database {
         }
     }
 
-    public static synchronized List<Model> selectAll(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, List<Association> associations, String searchName) throws SQLException {
+    private static final class SelectAllPlan {
+        private final String sql;
+        private final List<String> attrList;
+        private final List<String> prefixes;
+        private final Map<String,Association> prefixToAssocMap;
+        private final boolean hasJoins;
+        // parameters in the order they are bound: a year window for each joined revenue table, the search term
+        // searchParamCount times, a year window on the base table and a row limit
+        private final int yearWindowJoins;
+        private final int searchParamCount;
+        private final boolean hasYearWindow;
+        private final boolean hasLimit;
+        // compiled from the first result set of this plan
+        private volatile SelectAllDecoder decoder;
+        private SelectAllPlan(String sql, List<String> attrList, Map<String,Association> prefixToAssocMap, boolean hasJoins, int searchParamCount, boolean hasYearWindow) {
+            this(sql, attrList, prefixToAssocMap, hasJoins, 0, searchParamCount, hasYearWindow, false);
+        }
+        private SelectAllPlan(String sql, List<String> attrList, Map<String,Association> prefixToAssocMap, boolean hasJoins, int yearWindowJoins, int searchParamCount, boolean hasYearWindow, boolean hasLimit) {
+            this.yearWindowJoins=yearWindowJoins;
+            this.searchParamCount=searchParamCount;
+            this.hasYearWindow=hasYearWindow;
+            this.hasLimit=hasLimit;
+            this.sql=sql;
+            this.attrList=attrList;
+            this.prefixToAssocMap=prefixToAssocMap;
+            this.hasJoins=hasJoins;
+            this.prefixes = new ArrayList<>(prefixToAssocMap.keySet());
+            this.prefixes.sort(Comparator.naturalOrder());
+        }
+    }
+
+    private static SelectAllPlan buildSelectAllPlan(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, List<Association> associations, boolean search, boolean yearWindow) {
+        return buildSelectAllPlan(isRevenueModel, model, tableName, attributes, associations, search, false, yearWindow);
+    }
+
+    // with a year window, revenue rows outside of it are filtered in the query (which also lets a year partitioned
+    // schema skip whole partitions) instead of being read and thrown away
+    private static SelectAllPlan buildSelectAllPlan(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, List<Association> associations, boolean search, boolean trigram, boolean yearWindow) {
+        if(trigram && yearWindow) throw new RuntimeException("Trigram searches do not take a year window.");
         List<String> attrList = new ArrayList<>(new HashSet<>(attributes));
         boolean addNameToRevenue = attrList.contains(Constants.NAME);
         if(isRevenueModel && addNameToRevenue) {
             attrList.remove(Constants.NAME);
         }
-        PreparedStatement ps;
         List<String> joinAttrStrs = new ArrayList<>();
         List<String> allJoins = new ArrayList<>();
         Map<String, Association> prefixToAssocMap = new HashMap<>();
         Set<String> groups = new HashSet<>();
         AtomicBoolean useGroups = new AtomicBoolean(false);
+        AtomicInteger yearWindowJoins = new AtomicInteger(0);
         if(associations!=null) {
             // add other attr strs
-            if(searchName!=null) throw new RuntimeException("Searching in associations query is not yet supported.");
-            selectAllHelper("r", "j", associations, prefixToAssocMap, joinAttrStrs, allJoins, groups, useGroups);
+            if(search) throw new RuntimeException("Searching in associations query is not yet supported.");
+            selectAllHelper("r", "j", associations, prefixToAssocMap, joinAttrStrs, allJoins, groups, useGroups, yearWindow, yearWindowJoins);
         }
         String groupBy = "";
         if(useGroups.get() && groups.size() > 0) {
@@ -342,7 +859,26 @@ public class Database {
             groupBy = " group by "+String.join(",", groups);
         }
         String where = "";
-        if(searchName!=null) {
+        String orderBy = "";
+        int searchParamCount = search ? 1 : 0;
+        if(search && trigram) {
+            if(!addNameToRevenue) {
+                throw new RuntimeException("Searching without a valid name attribute");
+            }
+            // substring or trigram similarity matches, both of which can use the gin (lower(name) gin_trgm_ops) indexes,
+            // best matches first and limited
+            if(model.equals(Association.Model.MarketShareRevenue)) {
+                where = " where (r.market_id in (select id from markets where lower(name) like '%'||?||'%' or lower(name) % ?) " +
+                        "or r.company_id in (select id from companies where lower(name) like '%'||?||'%' or lower(name) % ?)) ";
+                orderBy = " order by greatest(similarity(lower(m.name), ?), similarity(lower(c.name), ?)) desc, r.id limit ?";
+                searchParamCount = 6;
+            } else {
+                String nameExpr = isRevenueModel ? "lower(j.name)" : "lower(r.name)";
+                where = " where ("+nameExpr+" like '%'||?||'%' or "+nameExpr+" % ?) ";
+                orderBy = " order by similarity("+nameExpr+", ?) desc, r.id limit ?";
+                searchParamCount = 3;
+            }
+        } else if(search) {
             if(!addNameToRevenue) {
                 throw new RuntimeException("Searching without a valid name attribute");
             }
@@ -354,6 +890,10 @@ public class Database {
                 where = " where lower(r.name) like '%'||?||'%' ";
             }
         }
+        boolean hasYearWindow = yearWindow && isRevenueModel;
+        if(hasYearWindow) {
+            where = (where.isEmpty() ? " where " : where + " and ") + "r.year between ? and ? ";
+        }
 
         String attrStr = String.join(",", attrList.stream().map(a -> "r." + a + " as r_"+a).collect(Collectors.toList()));
         if(attrList.size()>0) {
@@ -383,104 +923,440 @@ public class Database {
         if (associations != null && allJoins.size()>0 && joinAttrStrs.size()>0) {
             sqlStr ="select r.id as id " + attrStr + ","+String.join(",", joinAttrStrs)+" from " + tableName + " as r " + String.join(" ", allJoins) + where + " " + groupBy;
         } else {
-            sqlStr ="select r.id as id " + attrStr + " from " + tableName + " as r " + where;
+            // searches filter and order on the joined parent names
+            String nameJoins = search ? String.join(" ", allJoins) : "";
+            sqlStr ="select r.id as id " + attrStr + " from " + tableName + " as r " + nameJoins + where + orderBy;
         }
-        ps = conn.prepareStatement(sqlStr);
+        if(isRevenueModel && addNameToRevenue) {
+            attrList.add(0, Constants.NAME);
+        }
+        boolean hasJoins = allJoins.size()>0 && joinAttrStrs.size()>0;
+        return new SelectAllPlan(sqlStr, attrList, prefixToAssocMap, hasJoins, hasJoins ? yearWindowJoins.get() : 0, searchParamCount, hasYearWindow, trigram);
+    }
 
-        if(searchName!=null) {
-            ps.setString(1, searchName);
+    public static List<Model> selectAll(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, List<Association> associations, String searchName) throws SQLException {
+        List<Model> models = new ArrayList<>();
+        selectAll(isRevenueModel, model, tableName, attributes, associations, searchName, models::add);
+        return models;
+    }
+
+    // streams each decoded row to the consumer while the query is still running. The driver only
+    // fetches rows through a cursor (fetchSize at a time) inside a transaction, so autocommit is off.
+    public static void selectAll(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, List<Association> associations, String searchName, @NonNull Consumer<Model> consumer) throws SQLException {
+        selectAll(isRevenueModel, model, tableName, attributes, associations, searchName, defaultJoinStrategy, consumer);
+    }
+
+    public static void selectAll(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, List<Association> associations, String searchName, @NonNull JoinStrategy joinStrategy, @NonNull Consumer<Model> consumer) throws SQLException {
+        selectAll(isRevenueModel, model, tableName, attributes, associations, searchName, null, null, joinStrategy, consumer);
+    }
+
+    // only revenues with startYear <= year <= endYear are returned (as rows or joined associations) when both are given
+    public static void selectAll(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, List<Association> associations, String searchName, Integer startYear, Integer endYear, @NonNull JoinStrategy joinStrategy, @NonNull Consumer<Model> consumer) throws SQLException {
+        final int[] years = startYear!=null && endYear!=null ? new int[]{startYear, endYear} : null;
+        if(joinStrategy.equals(JoinStrategy.MERGE) && associations!=null && associations.size()>0) {
+            if(searchName!=null) throw new RuntimeException("Searching in associations query is not yet supported.");
+            selectAllMerged(isRevenueModel, model, tableName, attributes, associations, searchName, years, consumer);
+            return;
         }
-        System.out.println("QUERY: "+ps.toString());
-        ResultSet rs = ps.executeQuery();
+        final SelectAllPlan plan = sqlShapeFor(() -> buildSelectAllPlan(isRevenueModel, model, tableName, attributes, associations, searchName!=null, years!=null),
+                "selectAll", model, tableName, attributes, associations, searchName!=null, years!=null);
+        selectAll(plan, "selectAll", model, tableName, associations, searchName, years, 0, consumer);
+    }
+
+    // typeahead search on the name using pg_trgm: substring and fuzzy matches ranked by similarity, at most limit rows
+    public static List<Model> searchByTrigram(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, @NonNull String searchName, int limit) throws SQLException {
+        final SelectAllPlan plan = sqlShapeFor(() -> buildSelectAllPlan(isRevenueModel, model, tableName, attributes, null, true, true, false),
+                "searchByTrigram", model, tableName, attributes);
         List<Model> models = new ArrayList<>();
-        if(isRevenueModel && addNameToRevenue) {
-            attrList.add(0, Constants.NAME);
+        selectAll(plan, "searchByTrigram", model, tableName, null, searchName, null, limit, models::add);
+        return models;
+    }
+
+    private static void selectAll(SelectAllPlan plan, String kind, Association.Model model, String tableName, List<Association> associations, String searchName, int[] years, int limit, Consumer<Model> consumer) throws SQLException {
+        try(QueryStats.Timer timer = QueryStats.time(kind, tableName, plan.sql);
+            Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try(PreparedStatement ps = conn.prepareStatement(plan.sql)) {
+                ps.setFetchSize(selectFetchSize);
+                int paramIdx = 1;
+                for(int i = 0; i < plan.yearWindowJoins; i++) {
+                    ps.setInt(paramIdx++, years[0]);
+                    ps.setInt(paramIdx++, years[1]);
+                }
+                if(searchName!=null) {
+                    for(int i = 0; i < plan.searchParamCount; i++) {
+                        ps.setString(paramIdx++, searchName);
+                    }
+                }
+                if(plan.hasYearWindow) {
+                    ps.setInt(paramIdx++, years[0]);
+                    ps.setInt(paramIdx++, years[1]);
+                }
+                if(plan.hasLimit) {
+                    ps.setInt(paramIdx, limit);
+                }
+                try(ResultSet rs = ps.executeQuery()) {
+                    timer.addRows(decodeSelectAllRows(rs, plan, model, associations, consumer));
+                }
+                conn.commit();
+                timer.success();
+            } catch(SQLException|RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static long decodeSelectAllRows(ResultSet rs, SelectAllPlan plan, Association.Model model, List<Association> associations, Consumer<Model> consumer) throws SQLException {
+        SelectAllDecoder decoder = plan.decoder;
+        if(decoder==null) {
+            decoder = new SelectAllDecoder(plan, rs.getMetaData(), model, associations != null);
+            plan.decoder = decoder;
         }
+        long rows = 0;
         while(rs.next()) {
-            AtomicInteger queryIdx = new AtomicInteger(1);
-            Map<String, Object> data = new HashMap<>();
-            int id = rs.getInt(queryIdx.getAndIncrement());
-            for (int i = 0; i < attrList.size(); i++) {
-                data.put(attrList.get(i), rs.getObject(queryIdx.getAndIncrement()));
+            consumer.accept(decoder.decode(rs));
+            rows++;
+        }
+        return rows;
+    }
+
+    private interface ColumnReader {
+        Object read(ResultSet rs, int idx) throws SQLException;
+    }
+
+    // reads the column with the typed getter so that common columns are not boxed through getObject's type lookup
+    private static ColumnReader columnReaderFor(int sqlType) {
+        switch(sqlType) {
+            case Types.INTEGER: {
+                return (rs, idx) -> {
+                    int v = rs.getInt(idx);
+                    return rs.wasNull() ? null : v;
+                };
+            }
+            case Types.BIGINT: {
+                return (rs, idx) -> {
+                    long v = rs.getLong(idx);
+                    return rs.wasNull() ? null : v;
+                };
+            }
+            case Types.DOUBLE: {
+                return (rs, idx) -> {
+                    double v = rs.getDouble(idx);
+                    return rs.wasNull() ? null : v;
+                };
+            }
+            case Types.VARCHAR: {
+                return ResultSet::getString;
+            }
+            default: {
+                return ResultSet::getObject;
+            }
+        }
+    }
+
+    // one per selectAll plan, built from the first result set. Holds the column layout
+    // so that decoding a row is just a walk over precomputed column indices.
+    private static final class SelectAllDecoder {
+        private final Association.Model model;
+        private final String[] attrs;
+        private final ColumnReader[] attrReaders;
+        private final boolean setAssociations;
+        private final List<AssociationColumns> associationColumns;
+        private SelectAllDecoder(SelectAllPlan plan, ResultSetMetaData meta, Association.Model model, boolean setAssociations) throws SQLException {
+            this.model=model;
+            this.setAssociations=setAssociations;
+            this.attrs = plan.attrList.toArray(new String[plan.attrList.size()]);
+            this.attrReaders = new ColumnReader[attrs.length];
+            int queryIdx = 2;
+            for(int i = 0; i < attrs.length; i++) {
+                attrReaders[i] = columnReaderFor(meta.getColumnType(queryIdx++));
+            }
+            this.associationColumns = new ArrayList<>();
+            if(setAssociations && plan.hasJoins) {
+                Model prototype = buildModelFromDataAndType(null, null, model);
+                for (String prefix : plan.prefixes) {
+                    Association association = plan.prefixToAssocMap.get(prefix);
+                    Association modelsAssociation = prototype.getAssociationsMeta().stream().filter(a -> a.getAssociationName().equals(association.getAssociationName())).findAny().orElse(null);
+                    if (modelsAssociation == null) continue;
+                    Model assoc = buildModelFromDataAndType(null, null, modelsAssociation.getModel());
+                    List<String> assocAttrs = assoc == null ? Collections.emptyList() : assoc.getAvailableAttributes();
+                    AssociationColumns columns = new AssociationColumns(association, modelsAssociation, assocAttrs, queryIdx);
+                    if(assoc != null && (modelsAssociation.getType().equals(Association.Type.ManyToOne) || modelsAssociation.getType().equals(Association.Type.OneToMany))) {
+                        for(int i = 0; i < columns.attrReaders.length; i++) {
+                            columns.attrReaders[i] = columnReaderFor(meta.getColumnType(queryIdx + 1 + i));
+                        }
+                        queryIdx += 1 + assocAttrs.size();
+                    }
+                    associationColumns.add(columns);
+                }
+            }
+        }
+
+        private Model decode(ResultSet rs) throws SQLException {
+            Map<String, Object> data = new HashMap<>(attrs.length * 2);
+            int id = rs.getInt(1);
+            for (int i = 0; i < attrs.length; i++) {
+                data.put(attrs[i], attrReaders[i].read(rs, i + 2));
             }
             Model m = buildModelFromDataAndType(id, data, model);
-            Map<Association, List<Model>> associationsMap = new HashMap<>();
-            if (associations != null) {
-                if(allJoins.size()>0 && joinAttrStrs.size()>0) {
-                    List<String> prefixes = new ArrayList<>(prefixToAssocMap.keySet());
-                    prefixes.sort(Comparator.naturalOrder());
-                    for (String prefix : prefixes) {
-                        Association association = prefixToAssocMap.get(prefix);
-                        // add association
-                        Association modelsAssociation = m.getAssociationsMeta().stream().filter(a -> a.getAssociationName().equals(association.getAssociationName())).findAny().orElse(null);
-                        if (modelsAssociation != null) {
-                            Model assoc = buildModelFromDataAndType(null, null, modelsAssociation.getModel());
-                            List<Model> assocList = new ArrayList<>();
-                            if (assoc != null) {
-                                if(modelsAssociation.getType().equals(Association.Type.ManyToOne)) {
-                                    Integer assocId = (Integer) rs.getObject(queryIdx.getAndIncrement());
-                                    if (assocId != null) {
-                                        Map<String, Object> assocData = new HashMap<>();
-                                        for (String attr : assoc.getAvailableAttributes()) {
-                                            assocData.put(attr, rs.getObject(queryIdx.getAndIncrement()));
-                                        }
-                                        if(!assocData.containsKey(Constants.NAME)) {
-                                            assocData.put(Constants.NAME, association.getAssociationName());
-                                        }
-                                        assoc = buildModelFromDataAndType(assocId, assocData, association.getModel());
-                                        if (assoc != null) {
-                                            assocList.add(assoc);
-                                        }
-                                    } else {
-                                        for(int i = 0; i < assoc.getAvailableAttributes().size(); i++) {
-                                            queryIdx.getAndIncrement();
-                                        }
-                                    }
-                                } else if(modelsAssociation.getType().equals(Association.Type.OneToMany)) {
-                                    Array assocIdsArr = rs.getArray(queryIdx.getAndIncrement());
-                                    if (assocIdsArr != null && assocIdsArr.getResultSet()!=null) {
-                                        Integer[] assocIds = (Integer[])assocIdsArr.getArray();
-                                        List<Map<String,Object>> dataMaps = new ArrayList<>(assocIds.length);
-                                        for(int i = 0; i < assocIds.length; i++) {
-                                            dataMaps.add(new HashMap<>());
-                                        }
-                                        for (String attr : assoc.getAvailableAttributes()) {
-                                            Object[] assocFieldArr = (Object[])rs.getArray(queryIdx.getAndIncrement()).getArray();
-                                            for(int i = 0; i < assocFieldArr.length; i++) {
-                                                dataMaps.get(i).put(attr, assocFieldArr[i]);
-                                            }
-                                        }
-                                        for(int i = 0; i < assocIds.length; i++) {
-                                            if(assocIds[i] != null) {
-                                                if(!dataMaps.get(i).containsKey(Constants.NAME)) {
-                                                    dataMaps.get(i).put(Constants.NAME, association.getAssociationName());
-                                                }
-                                                Model newAssoc = buildModelFromDataAndType(assocIds[i], dataMaps.get(i), association.getModel());
-                                                if (newAssoc != null) {
-                                                    assocList.add(newAssoc);
-                                                }
-                                            }
-                                        }
-                                    } else {
-                                        for(int i = 0; i < assoc.getAvailableAttributes().size(); i++) {
-                                            queryIdx.getAndIncrement();
-                                        }
-                                    }
-                                }
+            if(setAssociations) {
+                Map<Association, List<Model>> associationsMap = new HashMap<>(associationColumns.size() * 2);
+                for(AssociationColumns columns : associationColumns) {
+                    associationsMap.put(columns.modelsAssociation, columns.decode(rs));
+                }
+                m.setAssociations(associationsMap);
+            }
+            return m;
+        }
+    }
 
+    private static final class AssociationColumns {
+        private final Association association;
+        private final Association modelsAssociation;
+        private final String[] attrs;
+        private final ColumnReader[] attrReaders;
+        private final int idIdx;
+        private final boolean manyToOne;
+        private final boolean oneToMany;
+        private AssociationColumns(Association association, Association modelsAssociation, List<String> attrs, int idIdx) {
+            this.association=association;
+            this.modelsAssociation=modelsAssociation;
+            this.attrs=attrs.toArray(new String[attrs.size()]);
+            this.attrReaders=new ColumnReader[attrs.size()];
+            this.idIdx=idIdx;
+            this.manyToOne=attrs.size()>0 && modelsAssociation.getType().equals(Association.Type.ManyToOne);
+            this.oneToMany=attrs.size()>0 && modelsAssociation.getType().equals(Association.Type.OneToMany);
+        }
+
+        private List<Model> decode(ResultSet rs) throws SQLException {
+            List<Model> assocList = new ArrayList<>();
+            if(manyToOne) {
+                decodeRow(rs, assocList);
+            } else if(oneToMany) {
+                Array assocIdsArr = rs.getArray(idIdx);
+                if (assocIdsArr != null) {
+                    Integer[] assocIds = (Integer[])assocIdsArr.getArray();
+                    Object[][] assocFieldArrs = new Object[attrs.length][];
+                    for (int i = 0; i < attrs.length; i++) {
+                        assocFieldArrs[i] = (Object[])rs.getArray(idIdx + 1 + i).getArray();
+                    }
+                    for(int j = 0; j < assocIds.length; j++) {
+                        if(assocIds[j] != null) {
+                            Map<String, Object> assocData = new HashMap<>(attrs.length * 2);
+                            for (int i = 0; i < attrs.length; i++) {
+                                assocData.put(attrs[i], assocFieldArrs[i][j]);
+                            }
+                            if(!assocData.containsKey(Constants.NAME)) {
+                                assocData.put(Constants.NAME, association.getAssociationName());
+                            }
+                            Model newAssoc = buildModelFromDataAndType(assocIds[j], assocData, association.getModel());
+                            if (newAssoc != null) {
+                                assocList.add(newAssoc);
                             }
-                            associationsMap.put(modelsAssociation, assocList);
                         }
                     }
                 }
-                m.setAssociations(associationsMap);
             }
-            models.add(m);
+            return assocList;
+        }
 
+        // a single associated record laid out as id followed by its attributes
+        private void decodeRow(ResultSet rs, List<Model> assocList) throws SQLException {
+            int assocId = rs.getInt(idIdx);
+            if (!rs.wasNull()) {
+                Map<String, Object> assocData = new HashMap<>(attrs.length * 2);
+                for (int i = 0; i < attrs.length; i++) {
+                    assocData.put(attrs[i], attrReaders[i].read(rs, idIdx + 1 + i));
+                }
+                if(!assocData.containsKey(Constants.NAME)) {
+                    assocData.put(Constants.NAME, association.getAssociationName());
+                }
+                Model assoc = buildModelFromDataAndType(assocId, assocData, association.getModel());
+                if (assoc != null) {
+                    assocList.add(assoc);
+                }
+            }
+        }
+    }
+
+    // one query per associated table, each ordered by the id of the base record it belongs to,
+    // so the child lists are assembled by walking all the cursors forward together
+    private static final class MergePlan {
+        private final SelectAllPlan base;
+        private final List<MergeJoin> joins;
+        private final String sql;
+        private MergePlan(SelectAllPlan base, List<MergeJoin> joins) {
+            this.base=base;
+            this.joins=joins;
+            this.sql=base.sql+";"+joins.stream().map(join->join.sql).collect(Collectors.joining(";"));
+        }
+    }
+
+    private static final class MergeJoin {
+        private final String sql;
+        private final Association association;
+        private final Association modelsAssociation;
+        private final List<String> attrs;
+        // number of "year between ? and ?" predicates in the sql
+        private final int yearWindows;
+        // compiled from the first result set of this join
+        private volatile AssociationColumns columns;
+        private MergeJoin(String sql, Association association, Association modelsAssociation, List<String> attrs, int yearWindows) {
+            this.sql=sql;
+            this.yearWindows=yearWindows;
+            this.association=association;
+            this.modelsAssociation=modelsAssociation;
+            this.attrs=attrs;
+        }
+    }
+
+    private static final class MergeCursor {
+        private final MergeJoin join;
+        private final AssociationColumns columns;
+        private final ResultSet rs;
+        private boolean hasRow;
+        private int parentId;
+        private MergeCursor(MergeJoin join, ResultSet rs) throws SQLException {
+            AssociationColumns columns = join.columns;
+            if(columns==null) {
+                columns = new AssociationColumns(join.association, join.modelsAssociation, join.attrs, 2);
+                ResultSetMetaData meta = rs.getMetaData();
+                for(int i = 0; i < columns.attrReaders.length; i++) {
+                    columns.attrReaders[i] = columnReaderFor(meta.getColumnType(3 + i));
+                }
+                join.columns = columns;
+            }
+            this.join=join;
+            this.columns=columns;
+            this.rs=rs;
+            advance();
+        }
+
+        private void advance() throws SQLException {
+            hasRow = rs.next();
+            if(hasRow) parentId = rs.getInt(1);
+        }
+
+        private List<Model> collect(int id) throws SQLException {
+            while(hasRow && parentId < id) {
+                advance();
+            }
+            List<Model> assocList = new ArrayList<>();
+            while(hasRow && parentId == id) {
+                columns.decodeRow(rs, assocList);
+                advance();
+            }
+            return assocList;
+        }
+    }
+
+    private static MergePlan buildMergePlan(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, @NonNull List<Association> associations, boolean search, boolean yearWindow) {
+        SelectAllPlan base = buildSelectAllPlan(isRevenueModel, model, tableName, attributes, null, search, yearWindow);
+        base = new SelectAllPlan(base.sql + " order by r.id", base.attrList, Collections.emptyMap(), false, base.searchParamCount, base.hasYearWindow);
+        Model prototype = buildModelFromDataAndType(null, null, model);
+        List<MergeJoin> joins = new ArrayList<>();
+        for(Association association : associations) {
+            Model m = buildModelFromDataAndType(null, null, association.getModel());
+            if(m == null) continue;
+            Association modelsAssociation = prototype.getAssociationsMeta().stream().filter(a -> a.getAssociationName().equals(association.getAssociationName())).findAny().orElse(null);
+            if(modelsAssociation == null) continue;
+            List<String> assocAttrList = new ArrayList<>(m.getAvailableAttributes());
+            if (m.isRevenueModel()) {
+                assocAttrList.remove(Constants.NAME);
+            }
+            String attrStr = assocAttrList.stream().map(a -> ",j." + a).collect(Collectors.joining());
+            boolean joinYearWindow = yearWindow && m.isRevenueModel();
+            String yearPredicate = joinYearWindow ? " and j.year between ? and ?" : "";
+            int yearWindows = joinYearWindow ? 1 : 0;
+            String sql;
+            if (association.getType().equals(Association.Type.ManyToOne)) {
+                // the base rows outside its year window are never read, so neither are their parents
+                String baseYearPredicate = "";
+                if(base.hasYearWindow) {
+                    baseYearPredicate = " where r.year between ? and ?";
+                    yearWindows++;
+                }
+                sql = "select r.id as parent_id,j.id" + attrStr + " from " + tableName + " as r join " + association.getParentTableName() + " as j on (j.id=r." + association.getParentIdField() + yearPredicate + ")" + baseYearPredicate + " order by r.id";
+            } else if (association.getType().equals(Association.Type.OneToMany)) {
+                sql = "select j." + association.getParentIdField() + " as parent_id,j.id" + attrStr + " from " + association.getChildTableName() + " as j where j." + association.getParentIdField() + " is not null" + yearPredicate + " order by j." + association.getParentIdField() + ",j.id";
+            } else {
+                throw new RuntimeException("Unsupported join type: " + association.getType());
+            }
+            joins.add(new MergeJoin(sql, association, modelsAssociation, assocAttrList, yearWindows));
+        }
+        return new MergePlan(base, joins);
+    }
+
+    private static void selectAllMerged(boolean isRevenueModel, @NonNull Association.Model model, @NonNull String tableName, @NonNull Collection<String> attributes, @NonNull List<Association> associations, String searchName, int[] years, @NonNull Consumer<Model> consumer) throws SQLException {
+        final MergePlan plan = sqlShapeFor(() -> buildMergePlan(isRevenueModel, model, tableName, attributes, associations, searchName!=null, years!=null),
+                "selectAllMerged", model, tableName, attributes, associations, searchName!=null, years!=null);
+        List<PreparedStatement> statements = new ArrayList<>();
+        List<ResultSet> resultSets = new ArrayList<>();
+        try(QueryStats.Timer timer = QueryStats.time("selectAllMerged", tableName, plan.sql);
+            Connection conn = getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                // every statement keeps its own portal open, so the streams can be read side by side
+                PreparedStatement basePs = conn.prepareStatement(plan.base.sql);
+                statements.add(basePs);
+                basePs.setFetchSize(selectFetchSize);
+                int paramIdx = 1;
+                if(searchName!=null) {
+                    basePs.setString(paramIdx++, searchName);
+                }
+                if(plan.base.hasYearWindow) {
+                    basePs.setInt(paramIdx++, years[0]);
+                    basePs.setInt(paramIdx, years[1]);
+                }
+                ResultSet baseRs = basePs.executeQuery();
+                resultSets.add(baseRs);
+                List<MergeCursor> cursors = new ArrayList<>(plan.joins.size());
+                for(MergeJoin join : plan.joins) {
+                    PreparedStatement ps = conn.prepareStatement(join.sql);
+                    statements.add(ps);
+                    ps.setFetchSize(selectFetchSize);
+                    int joinParamIdx = 1;
+                    for(int i = 0; i < join.yearWindows; i++) {
+                        ps.setInt(joinParamIdx++, years[0]);
+                        ps.setInt(joinParamIdx++, years[1]);
+                    }
+                    ResultSet rs = ps.executeQuery();
+                    resultSets.add(rs);
+                    cursors.add(new MergeCursor(join, rs));
+                }
+                SelectAllDecoder decoder = plan.base.decoder;
+                if(decoder==null) {
+                    decoder = new SelectAllDecoder(plan.base, baseRs.getMetaData(), model, false);
+                    plan.base.decoder = decoder;
+                }
+                while(baseRs.next()) {
+                    Model m = decoder.decode(baseRs);
+                    Map<Association, List<Model>> associationsMap = new HashMap<>(cursors.size() * 2);
+                    for(MergeCursor cursor : cursors) {
+                        associationsMap.put(cursor.join.modelsAssociation, cursor.collect(m.getId()));
+                    }
+                    m.setAssociations(associationsMap);
+                    consumer.accept(m);
+                    timer.addRows(1);
+                }
+                conn.commit();
+                timer.success();
+            } catch(SQLException|RuntimeException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                for(ResultSet rs : resultSets) {
+                    rs.close();
+                }
+                for(PreparedStatement ps : statements) {
+                    ps.close();
+                }
+                conn.setAutoCommit(true);
+            }
         }
-        rs.close();
-        ps.close();
-        return models;
     }
 
     public static Model buildModelFromDataAndType(Integer id, Map<String,Object> data, Association.Model model) {
@@ -0,0 +1,112 @@
+package database;
+
+import models.Constants;
+
+import java.sql.*;
+import java.util.*;
+
+// run against a seeded local database to make sure the lookups Database relies on can use their indexes.
+// Sequential scans are turned off for the session, since on a small seed the planner would rightly prefer them.
+public class ExplainCheck {
+    private static final class Check {
+        private final String name;
+        private final String index;
+        private final String sql;
+        // query returning the parameters of the checked statement from the seeded data
+        private final String sampleSql;
+        private Check(String name, String index, String sql, String sampleSql) {
+            this.name=name;
+            this.index=index;
+            this.sql=sql;
+            this.sampleSql=sampleSql;
+        }
+    }
+
+    private static final List<Check> CHECKS = Arrays.asList(
+            new Check("select by id", "markets_pkey",
+                    "select name from "+Constants.MARKET_TABLE+" where id=?",
+                    "select id from "+Constants.MARKET_TABLE+" limit 1"),
+            new Check("sub markets", "markets_parent_market_id_idx",
+                    "select id from "+Constants.MARKET_TABLE+" where parent_market_id=?",
+                    "select parent_market_id from "+Constants.MARKET_TABLE+" where parent_market_id is not null limit 1"),
+            new Check("sub revenues", "market_revenues_parent_revenue_id_idx",
+                    "select id from "+Constants.MARKET_REVENUE_TABLE+" where parent_revenue_id=?",
+                    "select parent_revenue_id from "+Constants.MARKET_REVENUE_TABLE+" where parent_revenue_id is not null limit 1"),
+            new Check("sub market shares", "companies_markets_parent_revenue_id_idx",
+                    "select id from "+Constants.COMPANY_MARKETS_JOIN_TABLE+" where parent_revenue_id=?",
+                    "select parent_revenue_id from "+Constants.COMPANY_MARKETS_JOIN_TABLE+" where parent_revenue_id is not null limit 1"),
+            new Check("revenues of a region", "market_revenues_region_id_parent_revenue_id_key",
+                    "select id from "+Constants.MARKET_REVENUE_TABLE+" where region_id=?",
+                    "select region_id from "+Constants.MARKET_REVENUE_TABLE+" where region_id is not null limit 1"),
+            new Check("market shares of a company", "companies_markets_company_id_market_id_year_idx",
+                    "select id from "+Constants.COMPANY_MARKETS_JOIN_TABLE+" where company_id=? and market_id=? and year=?",
+                    "select company_id, market_id, year from "+Constants.COMPANY_MARKETS_JOIN_TABLE+" where company_id is not null limit 1"),
+            new Check("region by name", "countries_name_key",
+                    "select id from "+Constants.REGION_TABLE+" where name=? limit 1",
+                    "select name from "+Constants.REGION_TABLE+" limit 1"),
+            new Check("region name search", "countries_name_trgm_idx",
+                    "select id from "+Constants.REGION_TABLE+" where lower(name) like '%'||?||'%'",
+                    "select lower(substring(name from 1 for 4)) from "+Constants.REGION_TABLE+" where length(name) >= 4 limit 1"),
+            new Check("market name search", "markets_name_trgm_idx",
+                    "select id from "+Constants.MARKET_TABLE+" where lower(name) like '%'||?||'%'",
+                    "select lower(substring(name from 1 for 4)) from "+Constants.MARKET_TABLE+" where length(name) >= 4 limit 1")
+    );
+
+    public static void main(String[] args) throws Exception {
+        Migrations.migrate();
+        List<String> failures = new ArrayList<>();
+        try(Connection conn = Database.getConnection()) {
+            try(Statement statement = conn.createStatement()) {
+                statement.execute("set enable_seqscan = off");
+            }
+            try {
+                for (Check check : CHECKS) {
+                    List<Object> params = new ArrayList<>();
+                    try (Statement statement = conn.createStatement();
+                         ResultSet rs = statement.executeQuery(check.sampleSql)) {
+                        if (rs.next()) {
+                            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                                params.add(rs.getObject(i));
+                            }
+                        }
+                    }
+                    if (params.isEmpty()) {
+                        System.out.println("SKIPPED " + check.name + ": no seeded rows to check with");
+                        continue;
+                    }
+                    List<String> plan = new ArrayList<>();
+                    try (PreparedStatement ps = conn.prepareStatement("explain " + check.sql)) {
+                        for (int i = 0; i < params.size(); i++) {
+                            ps.setObject(i + 1, params.get(i));
+                        }
+                        try (ResultSet rs = ps.executeQuery()) {
+                            while (rs.next()) {
+                                plan.add(rs.getString(1));
+                            }
+                        }
+                    }
+                    // with database_partitioned.sql the scans are on the per year partitions of the index
+                    // and the unique keys include the year
+                    boolean usesIndex = plan.stream().map(line -> line.replaceAll("_(\\d{4}|default)_", "_").replace("_parent_revenue_id_year_key", "_parent_revenue_id_key"))
+                            .anyMatch(line -> line.matches(".*(Index Scan using|Index Only Scan using|Bitmap Index Scan on) " + check.index + "\\b.*"));
+                    if (usesIndex) {
+                        System.out.println("OK " + check.name + ": " + check.index);
+                    } else {
+                        failures.add(check.name);
+                        System.out.println("FAILED " + check.name + ": expected " + check.index + " in");
+                        plan.forEach(line -> System.out.println("    " + line));
+                    }
+                }
+            } finally {
+                try(Statement statement = conn.createStatement()) {
+                    statement.execute("reset enable_seqscan");
+                }
+            }
+        }
+        if(!failures.isEmpty()) {
+            System.out.println(failures.size()+" of "+CHECKS.size()+" queries do not use their index: "+String.join(", ", failures));
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
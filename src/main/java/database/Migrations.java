@@ -0,0 +1,109 @@
+package database;
+
+import java.sql.*;
+import java.util.*;
+
+// numbered schema changes applied once each at startup and recorded in schema_migrations.
+// database.sql still recreates the whole schema from scratch, so every migration must also be safe to run
+// against a database built from it (create ... if not exists).
+public class Migrations {
+    private static final long ADVISORY_LOCK_ID = 4815162342L;
+
+    private static final class Migration {
+        private final int version;
+        private final String name;
+        private final List<String> statements;
+        private Migration(int version, String name, String... statements) {
+            this.version=version;
+            this.name=name;
+            this.statements=Arrays.asList(statements);
+        }
+    }
+
+    private static final List<Migration> MIGRATIONS = Arrays.asList(
+            new Migration(1, "revenue parent_revenue_id indexes",
+                    // region_id lookups are already covered by the unique (region_id, parent_revenue_id) index
+                    "create index if not exists market_revenues_parent_revenue_id_idx on market_revenues (parent_revenue_id) where parent_revenue_id is not null",
+                    "create index if not exists company_revenues_parent_revenue_id_idx on company_revenues (parent_revenue_id) where parent_revenue_id is not null",
+                    "create index if not exists product_revenues_parent_revenue_id_idx on product_revenues (parent_revenue_id) where parent_revenue_id is not null",
+                    "create index if not exists companies_markets_parent_revenue_id_idx on companies_markets (parent_revenue_id) where parent_revenue_id is not null"
+            ),
+            new Migration(2, "market share company index",
+                    "create index if not exists companies_markets_company_id_market_id_year_idx on companies_markets (company_id, market_id, year) where company_id is not null"
+            ),
+            new Migration(3, "trigram name indexes",
+                    "create extension if not exists pg_trgm",
+                    "create index if not exists products_name_trgm_idx on products using gin (lower(name) gin_trgm_ops)",
+                    "create index if not exists companies_name_trgm_idx on companies using gin (lower(name) gin_trgm_ops)",
+                    "create index if not exists markets_name_trgm_idx on markets using gin (lower(name) gin_trgm_ops)",
+                    "create index if not exists countries_name_trgm_idx on countries using gin (lower(name) gin_trgm_ops)"
+            ),
+            new Migration(4, "revenue rollups",
+                    "create table if not exists revenue_rollups (" +
+                            " domain text not null check (domain in ('global', 'regional', 'national'))," +
+                            " region_id integer not null," +
+                            " kind text not null check (kind in ('market_revenue', 'market_share', 'company_revenue'))," +
+                            " market_id integer not null," +
+                            " company_id integer not null," +
+                            " year integer not null," +
+                            " value double precision not null," +
+                            " primary key (domain, region_id, kind, market_id, company_id, year))",
+                    "create index if not exists revenue_rollups_market_id_idx on revenue_rollups (market_id, year)",
+                    "create index if not exists revenue_rollups_company_id_idx on revenue_rollups (company_id, year)"
+            )
+    );
+
+    public static void migrate() {
+        try(Connection conn = Database.getConnection()) {
+            try(Statement statement = conn.createStatement()) {
+                statement.executeUpdate("create table if not exists schema_migrations (version integer primary key, name text not null, applied_at timestamp not null default now())");
+                // only one process applies migrations at a time
+                statement.execute("select pg_advisory_lock("+ADVISORY_LOCK_ID+")");
+            }
+            try {
+                Set<Integer> applied = new HashSet<>();
+                try(Statement statement = conn.createStatement();
+                    ResultSet rs = statement.executeQuery("select version from schema_migrations")) {
+                    while(rs.next()) {
+                        applied.add(rs.getInt(1));
+                    }
+                }
+                for(Migration migration : MIGRATIONS) {
+                    if(applied.contains(migration.version)) continue;
+                    apply(conn, migration);
+                }
+            } finally {
+                try(Statement statement = conn.createStatement()) {
+                    statement.execute("select pg_advisory_unlock("+ADVISORY_LOCK_ID+")");
+                }
+            }
+        } catch(SQLException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error migrating database: "+e.getMessage());
+        }
+    }
+
+    private static void apply(Connection conn, Migration migration) throws SQLException {
+        long t0 = System.currentTimeMillis();
+        conn.setAutoCommit(false);
+        try {
+            try(Statement statement = conn.createStatement()) {
+                for(String sql : migration.statements) {
+                    statement.executeUpdate(sql);
+                }
+            }
+            try(PreparedStatement ps = conn.prepareStatement("insert into schema_migrations (version, name) values (?,?)")) {
+                ps.setInt(1, migration.version);
+                ps.setString(2, migration.name);
+                ps.executeUpdate();
+            }
+            conn.commit();
+        } catch(SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        System.out.println("Applied migration "+migration.version+" ("+migration.name+") in "+(System.currentTimeMillis()-t0)+" ms");
+    }
+}
@@ -0,0 +1,213 @@
+package database;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// per statement shape counters for everything that goes through Database
+public class QueryStats {
+    // log2 buckets of the latency in microseconds, the last bucket holds everything slower
+    private static final int NUM_BUCKETS = 24;
+    private static final Map<String,ShapeStats> statsBySql = new ConcurrentHashMap<>();
+    // connection wait of the current thread, added to by Database.getConnection
+    private static final ThreadLocal<long[]> connectionWaitNanos = ThreadLocal.withInitial(() -> new long[1]);
+    // set between beginRequest and endRequest on the thread serving a request
+    private static final ThreadLocal<RequestStats> currentRequest = new ThreadLocal<>();
+    private static final int nPlusOneThreshold = Integer.getInteger("db.request.n_plus_one_threshold", 25);
+    private static final int roundTripBudget = Integer.getInteger("db.request.round_trip_budget", 200);
+
+    private static final class ShapeStats {
+        private final String kind;
+        private final String table;
+        private final String sql;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAdder connectionWaitNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong(0L);
+        private final LongAdder[] histogram = new LongAdder[NUM_BUCKETS];
+        private ShapeStats(String kind, String table, String sql) {
+            this.kind=kind;
+            this.table=table;
+            this.sql=sql;
+            for(int i = 0; i < histogram.length; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+    }
+
+    public static class Timer implements AutoCloseable {
+        private final ShapeStats stats;
+        private final long start;
+        private final long connectionWaitStart;
+        private long rows;
+        private boolean success;
+        private Object lookupKey;
+        private Timer(ShapeStats stats) {
+            this.stats=stats;
+            this.connectionWaitStart=connectionWaitNanos.get()[0];
+            this.start=System.nanoTime();
+        }
+
+        public void addRows(long n) {
+            rows+=n;
+        }
+
+        // call at the end of the timed block, anything closed without it is counted as an error
+        public void success() {
+            success=true;
+        }
+
+        // the parameters of a single record lookup, used to spot the same lookup repeated within a request
+        public void lookup(Object key) {
+            lookupKey=key;
+        }
+
+        @Override
+        public void close() {
+            long elapsed = System.nanoTime()-start;
+            stats.calls.increment();
+            if(!success) stats.errors.increment();
+            stats.rows.add(rows);
+            stats.totalNanos.add(elapsed);
+            stats.connectionWaitNanos.add(connectionWaitNanos.get()[0]-connectionWaitStart);
+            stats.maxNanos.accumulateAndGet(elapsed, Math::max);
+            stats.histogram[bucketFor(elapsed)].increment();
+            RequestStats request = currentRequest.get();
+            if(request!=null) {
+                request.record(stats, elapsed, lookupKey);
+            }
+        }
+    }
+
+    public static class RequestStats {
+        private final String route;
+        private int roundTrips;
+        private long dbNanos;
+        private int repeatedLookups;
+        private final Map<ShapeStats,int[]> callsByShape = new HashMap<>();
+        private final Map<ShapeStats,long[]> nanosByShape = new HashMap<>();
+        private final Set<List<Object>> lookups = new HashSet<>();
+        private RequestStats(String route) {
+            this.route=route;
+        }
+
+        private void record(ShapeStats stats, long elapsed, Object lookupKey) {
+            roundTrips++;
+            dbNanos+=elapsed;
+            callsByShape.computeIfAbsent(stats, s -> new int[1])[0]++;
+            nanosByShape.computeIfAbsent(stats, s -> new long[1])[0]+=elapsed;
+            if(lookupKey!=null && !lookups.add(Arrays.asList(stats.sql, lookupKey))) {
+                repeatedLookups++;
+            }
+        }
+
+        public int getRoundTrips() {
+            return roundTrips;
+        }
+
+        public double getDbTimeMs() {
+            return dbNanos/1000000d;
+        }
+
+        public int getRepeatedLookups() {
+            return repeatedLookups;
+        }
+
+        // statement shapes issued more than the n+1 threshold within this request
+        public int getNPlusOneShapes() {
+            int n = 0;
+            for(int[] calls : callsByShape.values()) {
+                if(calls[0] > nPlusOneThreshold) n++;
+            }
+            return n;
+        }
+    }
+
+    public static void beginRequest(String route) {
+        currentRequest.set(new RequestStats(route));
+    }
+
+    // returns the stats of the request served by this thread (or null) and logs any n+1 patterns found in it
+    public static RequestStats endRequest() {
+        RequestStats request = currentRequest.get();
+        currentRequest.remove();
+        if(request==null) return null;
+        request.callsByShape.forEach((stats, calls) -> {
+            if(calls[0] > nPlusOneThreshold) {
+                System.out.println("WARNING N+1: "+request.route+" issued "+stats.kind+" on "+stats.table+" "+calls[0]+" times ("
+                        +String.format("%.1f", request.nanosByShape.get(stats)[0]/1000000d)+" ms): "+stats.sql);
+            }
+        });
+        if(request.roundTrips > roundTripBudget) {
+            System.out.println("WARNING: "+request.route+" made "+request.roundTrips+" database round trips ("
+                    +String.format("%.1f", request.getDbTimeMs())+" ms, "+request.repeatedLookups+" repeated lookups), budget is "+roundTripBudget);
+        }
+        return request;
+    }
+
+    public static Timer time(String kind, String table, String sql) {
+        ShapeStats stats = statsBySql.get(sql);
+        if(stats==null) {
+            stats = statsBySql.computeIfAbsent(sql, s -> new ShapeStats(kind, table, sql));
+        }
+        return new Timer(stats);
+    }
+
+    static void addConnectionWait(long nanos) {
+        connectionWaitNanos.get()[0]+=nanos;
+    }
+
+    private static int bucketFor(long nanos) {
+        long micros = Math.max(1L, nanos / 1000L);
+        return Math.min(NUM_BUCKETS-1, 63 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private static String bucketLabel(int bucket) {
+        if(bucket==NUM_BUCKETS-1) return ">="+formatMicros(1L << bucket);
+        return "<"+formatMicros(1L << (bucket+1));
+    }
+
+    private static String formatMicros(long micros) {
+        if(micros < 1000L) return micros+"us";
+        if(micros < 1000000L) return (micros/1000L)+"ms";
+        return (micros/1000000L)+"s";
+    }
+
+    public static void reset() {
+        statsBySql.clear();
+    }
+
+    // one entry per statement shape, most total time first
+    public static List<Map<String,Object>> snapshot() {
+        List<ShapeStats> all = new ArrayList<>(statsBySql.values());
+        all.sort((s1,s2)->Long.compare(s2.totalNanos.sum(),s1.totalNanos.sum()));
+        List<Map<String,Object>> results = new ArrayList<>(all.size());
+        for(ShapeStats stats : all) {
+            long calls = stats.calls.sum();
+            Map<String,Object> result = new LinkedHashMap<>();
+            result.put("kind", stats.kind);
+            result.put("table", stats.table);
+            result.put("calls", calls);
+            result.put("errors", stats.errors.sum());
+            result.put("rows", stats.rows.sum());
+            result.put("total_ms", stats.totalNanos.sum()/1000000d);
+            result.put("avg_ms", calls == 0 ? 0d : stats.totalNanos.sum()/1000000d/calls);
+            result.put("max_ms", stats.maxNanos.get()/1000000d);
+            result.put("connection_wait_ms", stats.connectionWaitNanos.sum()/1000000d);
+            Map<String,Long> histogram = new LinkedHashMap<>();
+            for(int i = 0; i < stats.histogram.length; i++) {
+                long count = stats.histogram[i].sum();
+                if(count > 0) {
+                    histogram.put(bucketLabel(i), count);
+                }
+            }
+            result.put("latency_histogram", histogram);
+            result.put("sql", stats.sql);
+            results.add(result);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,219 @@
+package database;
+
+import models.Constants;
+
+import java.sql.*;
+import java.util.*;
+
+// revenues resolved to every revenue domain and region, stored in revenue_rollups. Rows are keyed by the top level
+// revenue they belong to (kind, market, company), and only the keys touched by a write are rebuilt.
+public class RevenueRollups {
+    private static final String TABLE = "revenue_rollups";
+    private static final boolean enabled = Boolean.valueOf(System.getProperty("db.revenue_rollups", "true"));
+    // set by a full rebuild, cleared when an incremental refresh fails so reports stop trusting the table
+    private static volatile boolean ready = false;
+
+    public static boolean isReady() {
+        return enabled && ready;
+    }
+
+    private static String kindFor(String tableName) {
+        switch (tableName) {
+            case Constants.MARKET_REVENUE_TABLE: {
+                return "market_revenue";
+            }
+            case Constants.COMPANY_MARKETS_JOIN_TABLE: {
+                return "market_share";
+            }
+            case Constants.COMPANY_REVENUE_TABLE: {
+                return "company_revenue";
+            }
+            default: {
+                return null;
+            }
+        }
+    }
+
+    private static String marketIdSql(String tableName) {
+        return tableName.equals(Constants.COMPANY_REVENUE_TABLE) ? "0" : "r.market_id";
+    }
+
+    private static String companyIdSql(String tableName) {
+        return tableName.equals(Constants.MARKET_REVENUE_TABLE) ? "0" : "r.company_id";
+    }
+
+    private static String keyFilterSql(String tableName) {
+        switch (tableName) {
+            case Constants.MARKET_REVENUE_TABLE: {
+                return " and r.market_id=?";
+            }
+            case Constants.COMPANY_REVENUE_TABLE: {
+                return " and r.company_id=?";
+            }
+            default: {
+                return " and r.market_id=? and r.company_id=?";
+            }
+        }
+    }
+
+    // regional looks one level below the top revenue, national two levels with the nearer level winning,
+    // the same as Model.getSubRevenueByRegionId
+    private static String insertSql(String tableName, boolean forKey) {
+        String kind = kindFor(tableName);
+        String key = "'"+kind+"', "+marketIdSql(tableName)+", "+companyIdSql(tableName)+", r.year";
+        String filter = forKey ? keyFilterSql(tableName) : "";
+        return "insert into "+TABLE+" (domain, region_id, kind, market_id, company_id, year, value)" +
+                " select 'global', 0, "+key+", r.value from "+tableName+" r where r.parent_revenue_id is null"+filter +
+                " union all" +
+                " select 'regional', c.region_id, "+key+", c.value from "+tableName+" r join "+tableName+" c on (c.parent_revenue_id=r.id) where r.parent_revenue_id is null"+filter +
+                " union all" +
+                " select 'national', c.region_id, "+key+", c.value from "+tableName+" r join "+tableName+" c on (c.parent_revenue_id=r.id) where r.parent_revenue_id is null"+filter +
+                " union all" +
+                " select 'national', g.region_id, "+key+", g.value from "+tableName+" r join "+tableName+" c on (c.parent_revenue_id=r.id) join "+tableName+" g on (g.parent_revenue_id=c.id)" +
+                " where r.parent_revenue_id is null and not exists (select 1 from "+tableName+" c2 where c2.parent_revenue_id=r.id and c2.region_id=g.region_id)"+filter +
+                " on conflict do nothing";
+    }
+
+    private static final List<String> TABLES = Arrays.asList(Constants.MARKET_REVENUE_TABLE, Constants.COMPANY_MARKETS_JOIN_TABLE, Constants.COMPANY_REVENUE_TABLE);
+
+    public static void rebuild() {
+        if(!enabled) return;
+        long t0 = System.currentTimeMillis();
+        try(Connection conn = Database.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                try(Statement statement = conn.createStatement()) {
+                    statement.executeUpdate("delete from "+TABLE);
+                }
+                for(String tableName : TABLES) {
+                    String sql = insertSql(tableName, false);
+                    try(QueryStats.Timer timer = QueryStats.time("rollupRebuild", TABLE, sql);
+                        Statement statement = conn.createStatement()) {
+                        timer.addRows(statement.executeUpdate(sql));
+                        timer.success();
+                    }
+                }
+                conn.commit();
+            } catch(SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            ready = true;
+            System.out.println("Rebuilt "+TABLE+" in "+(System.currentTimeMillis()-t0)+" ms");
+        } catch(SQLException e) {
+            e.printStackTrace();
+            ready = false;
+        }
+    }
+
+    // (market id, company id) of the top level revenues the given rows belong to, 0 where it does not apply
+    public static Set<List<Integer>> keysFor(String tableName, Collection<Integer> ids) {
+        Set<List<Integer>> keys = new HashSet<>();
+        if(!enabled || kindFor(tableName)==null || ids.isEmpty()) return keys;
+        String sql = "with recursive up (id, parent_revenue_id, market_id, company_id) as (" +
+                " select r.id, r.parent_revenue_id, "+marketIdSql(tableName)+", "+companyIdSql(tableName)+" from "+tableName+" r where r.id = any(?)" +
+                " union" +
+                " select r.id, r.parent_revenue_id, "+marketIdSql(tableName)+", "+companyIdSql(tableName)+" from "+tableName+" r join up on (r.id=up.parent_revenue_id)" +
+                ") select distinct market_id, company_id from up where parent_revenue_id is null";
+        try(QueryStats.Timer timer = QueryStats.time("rollupKeys", tableName, sql);
+            Connection conn = Database.getConnection();
+            PreparedStatement ps = conn.prepareStatement(sql)) {
+            Array idArray = conn.createArrayOf("integer", ids.toArray(new Integer[ids.size()]));
+            try {
+                ps.setArray(1, idArray);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        keys.add(Arrays.asList(rs.getInt(1), rs.getInt(2)));
+                        timer.addRows(1);
+                    }
+                }
+            } finally {
+                idArray.free();
+            }
+            timer.success();
+        } catch(SQLException e) {
+            e.printStackTrace();
+            ready = false;
+        }
+        return keys;
+    }
+
+    // the keys of revenue rows about to be written, for afterWrite. Inside a unit of work nothing is looked up, the
+    // unit does it for all of its rows at once when it flushes.
+    public static Set<List<Integer>> keysBeforeWrite(String tableName, Collection<Integer> ids) {
+        if(UnitOfWork.current()!=null) return new HashSet<>();
+        return keysFor(tableName, ids);
+    }
+
+    // call after writing revenue rows with the keys they had before the write. The rows are refreshed once the
+    // write is committed, for both the old keys and the ones the rows belong to now. Inside a unit of work the rows
+    // are collected, so a cascade refreshes each table once instead of once per row.
+    public static void afterWrite(String tableName, Collection<Integer> ids, Collection<List<Integer>> keysBefore) {
+        if(!enabled || kindFor(tableName)==null || ids.isEmpty()) return;
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if(unitOfWork!=null) {
+            unitOfWork.addRollupWrite(tableName, ids, keysBefore);
+            return;
+        }
+        scheduleRefresh(tableName, ids, keysBefore);
+    }
+
+    static void scheduleRefresh(String tableName, Collection<Integer> ids, Collection<List<Integer>> keysBefore) {
+        final List<Integer> idsCopy = new ArrayList<>(ids);
+        final Set<List<Integer>> keys = new HashSet<>(keysBefore);
+        UnitOfWork.afterCommit(() -> {
+            try {
+                keys.addAll(keysFor(tableName, idsCopy));
+                refresh(tableName, keys);
+            } catch(RuntimeException e) {
+                // the rows are written, so the rollups no longer match them
+                ready = false;
+                throw e;
+            }
+        });
+    }
+
+    private static void refresh(String tableName, Collection<List<Integer>> keys) {
+        if(keys.isEmpty()) return;
+        String kind = kindFor(tableName);
+        String deleteSql = "delete from "+TABLE+" where kind='"+kind+"' and market_id=? and company_id=?";
+        String insertSql = insertSql(tableName, true);
+        boolean bothKeys = tableName.equals(Constants.COMPANY_MARKETS_JOIN_TABLE);
+        try(Connection conn = Database.getConnection()) {
+            conn.setAutoCommit(false);
+            try(QueryStats.Timer timer = QueryStats.time("rollupRefresh", TABLE, insertSql);
+                PreparedStatement delete = conn.prepareStatement(deleteSql);
+                PreparedStatement insert = conn.prepareStatement(insertSql)) {
+                for(List<Integer> key : keys) {
+                    delete.setInt(1, key.get(0));
+                    delete.setInt(2, key.get(1));
+                    delete.executeUpdate();
+                    int i = 1;
+                    // the key filter appears once in each part of the union
+                    for(int part = 0; part < 4; part++) {
+                        if(bothKeys) {
+                            insert.setInt(i++, key.get(0));
+                            insert.setInt(i++, key.get(1));
+                        } else {
+                            insert.setInt(i++, tableName.equals(Constants.COMPANY_REVENUE_TABLE) ? key.get(1) : key.get(0));
+                        }
+                    }
+                    timer.addRows(insert.executeUpdate());
+                }
+                conn.commit();
+                timer.success();
+            } catch(SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } catch(SQLException e) {
+            e.printStackTrace();
+            System.out.println("Unable to refresh "+TABLE+", reports will not use it until it is rebuilt.");
+            ready = false;
+        }
+    }
+}
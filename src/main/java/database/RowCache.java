@@ -0,0 +1,153 @@
+package database;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// bounded read-through cache of table rows keyed by (table, id), split into lock striped LRU maps.
+// Each entry holds whichever columns have been read for the row so far.
+public class RowCache {
+    private static final int capacity = Integer.getInteger("db.row_cache.size", 50000);
+    private static final int NUM_STRIPES = 16;
+    private static final Stripe[] stripes = new Stripe[NUM_STRIPES];
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final LongAdder invalidations = new LongAdder();
+    static {
+        for(int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(Math.max(1, capacity / NUM_STRIPES));
+        }
+    }
+
+    private static final class Key {
+        private final String table;
+        private final int id;
+        private Key(String table, int id) {
+            this.table=table;
+            this.id=id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return id == key.id && table.equals(key.table);
+        }
+
+        @Override
+        public int hashCode() {
+            return table.hashCode() * 31 + id;
+        }
+    }
+
+    private static final class Stripe {
+        private final LinkedHashMap<Key,Map<String,Object>> rows;
+        // bumped on every invalidation, so a read that raced with a write does not put the old row back
+        private long version;
+        private Stripe(int maxRows) {
+            this.rows = new LinkedHashMap<Key,Map<String,Object>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key,Map<String,Object>> eldest) {
+                    if(size() > maxRows) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    private static Stripe stripeFor(Key key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % NUM_STRIPES];
+    }
+
+    public static boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    // returns a copy of the requested columns, or null if any of them has not been cached for the row
+    public static Map<String,Object> get(String table, int id, Collection<String> attributes) {
+        if(!isEnabled()) return null;
+        Key key = new Key(table, id);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            Map<String,Object> row = stripe.rows.get(key);
+            if(row!=null && row.keySet().containsAll(attributes)) {
+                Map<String,Object> data = new HashMap<>(attributes.size());
+                for(String attr : attributes) {
+                    data.put(attr, row.get(attr));
+                }
+                hits.increment();
+                return data;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    // read before querying the database and passed back to put
+    public static long version(String table, int id) {
+        Stripe stripe = stripeFor(new Key(table, id));
+        synchronized (stripe) {
+            return stripe.version;
+        }
+    }
+
+    public static void put(String table, int id, Map<String,Object> data, long version) {
+        if(!isEnabled()) return;
+        Key key = new Key(table, id);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            if(stripe.version != version) return;
+            Map<String,Object> row = stripe.rows.get(key);
+            if(row==null) {
+                stripe.rows.put(key, new HashMap<>(data));
+            } else {
+                row.putAll(data);
+            }
+        }
+    }
+
+    public static void invalidate(String table, int id) {
+        Key key = new Key(table, id);
+        Stripe stripe = stripeFor(key);
+        synchronized (stripe) {
+            stripe.version++;
+            stripe.rows.remove(key);
+        }
+        invalidations.increment();
+    }
+
+    public static void clear() {
+        for(Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.version++;
+                stripe.rows.clear();
+            }
+        }
+        invalidations.increment();
+    }
+
+    public static Map<String,Object> getStats() {
+        Map<String,Object> stats = new LinkedHashMap<>();
+        int size = 0;
+        for(Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.rows.size();
+            }
+        }
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        stats.put("capacity", capacity);
+        stats.put("size", size);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hit_rate", hitCount + missCount == 0 ? 0d : ((double) hitCount) / (hitCount + missCount));
+        stats.put("evictions", evictions.sum());
+        stats.put("invalidations", invalidations.sum());
+        return stats;
+    }
+}
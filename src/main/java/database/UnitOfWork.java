@@ -0,0 +1,169 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.*;
+
+// collects the writes of a single user action (a cascading delete, a new association) and flushes them
+// in one transaction. In memory graph changes are registered with afterCommit so they only happen once the
+// database writes have gone through.
+public class UnitOfWork {
+    private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+
+    private static final class Update {
+        private final String table;
+        private final int id;
+        private final Map<String,Object> data;
+        private final List<String> keys;
+        private Update(String table, int id, Map<String,Object> data, List<String> keys) {
+            this.table=table;
+            this.id=id;
+            this.data=data;
+            this.keys=keys;
+        }
+    }
+
+    private final List<Update> updates = new ArrayList<>();
+    // (table, field) -> ids, in the order each group was first queued
+    private final Map<List<String>,Set<Integer>> nullifies = new LinkedHashMap<>();
+    // height in the cascade -> (table, field) -> ids. Everything a record's delete depends on is queued
+    // inside its cascade and so sits at a lower height, which lets each height go as one statement per table.
+    private final SortedMap<Integer,Map<List<String>,Set<Integer>>> deletes = new TreeMap<>();
+    private final Set<List<Object>> deletedRecords = new HashSet<>();
+    // highest height queued within each open cascade, the bottom entry is the unit itself
+    private final Deque<int[]> cascades = new ArrayDeque<>(Collections.singleton(new int[]{-1}));
+    private final List<Runnable> afterCommit = new ArrayList<>();
+    // revenue rows written per table and rollup keys already known for them, refreshed together after the commit
+    private final Map<String,Set<Integer>> rollupIds = new LinkedHashMap<>();
+    private final Map<String,Set<List<Integer>>> rollupKeys = new HashMap<>();
+
+    private UnitOfWork() {
+    }
+
+    public static UnitOfWork current() {
+        return current.get();
+    }
+
+    // runs the action inside a unit of work, or as part of the enclosing one if there already is one
+    public static void run(Runnable action) {
+        if(current.get()!=null) {
+            action.run();
+            return;
+        }
+        UnitOfWork unitOfWork = new UnitOfWork();
+        current.set(unitOfWork);
+        try {
+            action.run();
+            unitOfWork.flush();
+        } catch(SQLException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error writing to database: "+e.getMessage(), e);
+        } finally {
+            current.remove();
+        }
+        // the writes are committed by now, so a failing callback is logged rather than skipping the rest of them or
+        // failing the caller's request
+        for(Runnable callback : unitOfWork.afterCommit) {
+            try {
+                callback.run();
+            } catch(Exception e) {
+                e.printStackTrace();
+                System.out.println("Error running after commit callback: "+e.getMessage());
+            }
+        }
+    }
+
+    // runs the callback once the current unit of work commits, or right away outside of one
+    public static void afterCommit(Runnable callback) {
+        UnitOfWork unitOfWork = current.get();
+        if(unitOfWork==null) {
+            callback.run();
+        } else {
+            unitOfWork.afterCommit.add(callback);
+        }
+    }
+
+    void addRollupWrite(String table, Collection<Integer> ids, Collection<List<Integer>> keysBefore) {
+        rollupIds.computeIfAbsent(table, k -> new LinkedHashSet<>()).addAll(ids);
+        rollupKeys.computeIfAbsent(table, k -> new HashSet<>()).addAll(keysBefore);
+    }
+
+    void addUpdate(String table, int id, Map<String,Object> data, List<String> keys) {
+        updates.add(new Update(table, id, new HashMap<>(data), new ArrayList<>(keys)));
+    }
+
+    void addNullify(String table, String fieldName, int id) {
+        nullifies.computeIfAbsent(Arrays.asList(table, fieldName), k -> new LinkedHashSet<>()).add(id);
+    }
+
+    void addDelete(String table, String fieldName, int id) {
+        int[] cascade = cascades.peek();
+        int height = cascade[0]+1;
+        cascade[0] = height;
+        deletes.computeIfAbsent(height, k -> new LinkedHashMap<>())
+                .computeIfAbsent(Arrays.asList(table, fieldName), k -> new LinkedHashSet<>()).add(id);
+        if(fieldName.equals("id")) {
+            deletedRecords.add(Arrays.asList(table, id));
+        }
+    }
+
+    // wraps the deletes of a record and everything it cascades to, the record's own delete is queued last
+    public void beginCascade() {
+        cascades.push(new int[]{-1});
+    }
+
+    public void endCascade() {
+        int height = cascades.pop()[0];
+        int[] parent = cascades.peek();
+        parent[0] = Math.max(parent[0], height);
+    }
+
+    public boolean isDeleted(String table, int id) {
+        return deletedRecords.contains(Arrays.asList(table, id));
+    }
+
+    private boolean isEmpty() {
+        return updates.isEmpty() && nullifies.isEmpty() && deletes.isEmpty();
+    }
+
+    private void flush() throws SQLException {
+        // one key lookup per table while the rows still hold their old keys, and one refresh per table after the commit
+        rollupIds.forEach((table, ids) -> {
+            Set<List<Integer>> keys = rollupKeys.get(table);
+            keys.addAll(RevenueRollups.keysFor(table, ids));
+            RevenueRollups.scheduleRefresh(table, ids, keys);
+        });
+        if(isEmpty()) return;
+        try(Connection conn = Database.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                // updates carry different values per row so they still go one statement each, but share the transaction
+                for(Update update : updates) {
+                    Database.update(conn, update.table, update.id, update.data, update.keys);
+                }
+                for(Map.Entry<List<String>,Set<Integer>> e : nullifies.entrySet()) {
+                    Database.nullifyFieldName(conn, e.getKey().get(0), e.getKey().get(1), e.getValue());
+                }
+                for(Map<List<String>,Set<Integer>> level : deletes.values()) {
+                    for(Map.Entry<List<String>,Set<Integer>> e : level.entrySet()) {
+                        Database.deleteByFieldName(conn, e.getKey().get(0), e.getKey().get(1), e.getValue());
+                    }
+                }
+                conn.commit();
+            } catch(SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            for(Update update : updates) {
+                RowCache.invalidate(update.table, update.id);
+            }
+            nullifies.forEach((key, ids) -> ids.forEach(id -> RowCache.invalidate(key.get(0), id)));
+            if(!deletes.isEmpty()) {
+                RowCache.clear();
+            }
+        }
+    }
+}
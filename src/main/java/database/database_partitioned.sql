@@ -0,0 +1,144 @@
+-- optional alternative to the revenue tables in database.sql for large historical datasets (PostgreSQL 12 or later).
+-- Each revenue table is range partitioned by year, so queries with a year window (see Database.selectAll and
+-- -Dgraph.start_year) only touch the partitions of those years. Run database.sql first, then this script.
+-- Primary and unique keys have to include the partition key, so ids are unique per (id, year)
+-- and a sub revenue references its parent revenue by (id, year).
+
+create or replace function create_year_partitions(table_name text, from_year integer, to_year integer) returns void as $$
+begin
+    for y in from_year..to_year loop
+        execute format('create table if not exists %I partition of %I for values from (%s) to (%s)', table_name || '_' || y, table_name, y, y + 1);
+    end loop;
+    execute format('create table if not exists %I partition of %I default', table_name || '_default', table_name);
+end;
+$$ language plpgsql;
+
+drop table market_revenues;
+create table market_revenues (
+    id serial,
+    value double precision not null,
+    year integer not null,
+    notes text,
+    source text,
+    is_estimate boolean not null default ('f'),
+    estimate_type integer check (estimate_type in (0, 1, 2)),
+    cagr double precision,
+    market_id integer references markets (id) on delete restrict,
+    parent_revenue_id integer,
+    region_id integer,
+    updated_at timestamp not null default now(),
+    created_at timestamp not null default now(),
+    check (notes is not null OR source is not null),
+    check (is_estimate OR (source is not null)),
+    check ((not is_estimate) OR estimate_type is not null),
+    unique (market_id, year),
+    unique (region_id, parent_revenue_id, year),
+    foreign key (parent_revenue_id, year) references market_revenues (id, year) on delete restrict,
+    foreign key (region_id) references countries (id) on delete restrict,
+    check (value >= 0),
+    primary key (id, year),
+    check ((parent_revenue_id is null and region_id is null) or (parent_revenue_id is not null and region_id is not null))
+) partition by range (year);
+
+select create_year_partitions('market_revenues', 1990, 2040);
+
+create index market_revenues_market_id_idx on market_revenues (market_id);
+create index market_revenues_parent_revenue_id_idx on market_revenues (parent_revenue_id) where parent_revenue_id is not null;
+
+drop table company_revenues;
+create table company_revenues (
+    id serial,
+    value double precision not null,
+    year integer not null,
+    notes text,
+    source text,
+    is_estimate boolean not null default ('f'),
+    estimate_type integer check (estimate_type is null or estimate_type in (0, 1, 2)),
+    cagr double precision,
+    company_id integer references companies (id) on delete restrict,
+    parent_revenue_id integer,
+    region_id integer,
+    updated_at timestamp not null default now(),
+    created_at timestamp not null default now(),
+    check (notes is not null OR source is not null),
+    check (is_estimate OR (source is not null)),
+    check ((not is_estimate) OR estimate_type is not null),
+    unique (company_id, year),
+    unique (region_id, parent_revenue_id, year),
+    foreign key (parent_revenue_id, year) references company_revenues (id, year) on delete restrict,
+    foreign key (region_id) references countries (id) on delete restrict,
+    check (value >= 0),
+    primary key (id, year),
+    check ((parent_revenue_id is null and region_id is null) or (parent_revenue_id is not null and region_id is not null))
+) partition by range (year);
+
+select create_year_partitions('company_revenues', 1990, 2040);
+
+create index company_revenues_company_id_idx on company_revenues (company_id);
+create index company_revenues_parent_revenue_id_idx on company_revenues (parent_revenue_id) where parent_revenue_id is not null;
+
+drop table product_revenues;
+create table product_revenues (
+    id serial,
+    value double precision not null,
+    year integer not null,
+    notes text,
+    source text,
+    is_estimate boolean not null default ('f'),
+    estimate_type integer check (estimate_type is null or estimate_type in (0, 1, 2)),
+    cagr double precision,
+    product_id integer references products (id) on delete restrict,
+    parent_revenue_id integer,
+    region_id integer,
+    updated_at timestamp not null default now(),
+    created_at timestamp not null default now(),
+    check (notes is not null OR source is not null),
+    check (is_estimate OR (source is not null)),
+    check ((not is_estimate) OR estimate_type is not null),
+    unique (product_id, year),
+    unique (region_id, parent_revenue_id, year),
+    foreign key (parent_revenue_id, year) references product_revenues (id, year) on delete restrict,
+    foreign key (region_id) references countries (id) on delete restrict,
+    check (value >= 0),
+    primary key (id, year),
+    check ((parent_revenue_id is null and region_id is null) or (parent_revenue_id is not null and region_id is not null))
+) partition by range (year);
+
+select create_year_partitions('product_revenues', 1990, 2040);
+
+create index product_revenues_product_id_idx on product_revenues (product_id);
+create index product_revenues_parent_revenue_id_idx on product_revenues (parent_revenue_id) where parent_revenue_id is not null;
+
+drop table companies_markets;
+create table companies_markets (
+    id serial,
+    value double precision not null,
+    year integer not null,
+    notes text,
+    source text,
+    is_estimate boolean not null default ('f'),
+    estimate_type integer check (estimate_type is null or estimate_type in (0, 1, 2)),
+    cagr double precision,
+    company_id integer references companies (id) on delete restrict,
+    market_id integer references markets (id) on delete restrict,
+    parent_revenue_id integer,
+    region_id integer,
+    updated_at timestamp not null default now(),
+    created_at timestamp not null default now(),
+    check (notes is not null OR source is not null),
+    check (is_estimate OR (source is not null)),
+    check ((not is_estimate) OR estimate_type is not null),
+    unique (market_id, company_id, year),
+    unique (region_id, parent_revenue_id, year),
+    foreign key (parent_revenue_id, year) references companies_markets (id, year) on delete restrict,
+    foreign key (region_id) references countries (id) on delete restrict,
+    check ((market_id is not null and company_id is not null) OR parent_revenue_id is not null),
+    check (value >= 0),
+    primary key (id, year),
+    check ((parent_revenue_id is null and region_id is null) or (parent_revenue_id is not null and region_id is not null))
+) partition by range (year);
+
+select create_year_partitions('companies_markets', 1990, 2040);
+
+create index companies_markets_parent_revenue_id_idx on companies_markets (parent_revenue_id) where parent_revenue_id is not null;
+create index companies_markets_company_id_market_id_year_idx on companies_markets (company_id, market_id, year) where company_id is not null;
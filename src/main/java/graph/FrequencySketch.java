@@ -0,0 +1,59 @@
+package graph;
+
+// count-min sketch of how often node keys are accessed, 4 rows of 4 bit counters packed 16 to a long.
+// Once the number of recorded accesses reaches ten times the width every counter is halved, so old popularity fades.
+// Not thread safe, NodeCachePolicy only touches it under its lock.
+class FrequencySketch {
+    private static final long[] SEEDS = new long[]{0x97cb3127L, 0xbf58476d1ce4e5b9L, 0x94d049bb133111ebL, 0x9E3779B97F4A7C15L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int widthMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int width = Integer.highestOneBit(Math.max(expectedEntries, 1024) - 1) << 1;
+        width = Math.min(width, 1 << 24);
+        this.widthMask = width-1;
+        this.table = new long[(SEEDS.length * width) >>> 4];
+        this.sampleSize = 10 * width;
+    }
+
+    private int counter(int row, long key) {
+        long h = (key + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 32;
+        return row * (widthMask+1) + ((int) h & widthMask);
+    }
+
+    int frequency(long key) {
+        int frequency = 15;
+        for(int row = 0; row < SEEDS.length; row++) {
+            int i = counter(row, key);
+            frequency = Math.min(frequency, (int) ((table[i >>> 4] >>> ((i & 15) << 2)) & 15L));
+        }
+        return frequency;
+    }
+
+    void increment(long key) {
+        boolean added = false;
+        for(int row = 0; row < SEEDS.length; row++) {
+            int i = counter(row, key);
+            int shift = (i & 15) << 2;
+            if(((table[i >>> 4] >>> shift) & 15L) < 15L) {
+                table[i >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if(added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for(int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+}
@@ -1,38 +1,41 @@
 package graph;
 
-import com.google.common.util.concurrent.AtomicDouble;
 import controllers.Main;
 import database.Database;
 import lombok.NonNull;
 import models.*;
 
+import java.sql.SQLException;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+// lookups (findNode, getModelList, findMutualRelatives, areAlreadyConnected) read the node tables without locking,
+// only structural changes to the graph take the lock
 public class Graph {
     private static final Lock lock = new ReentrantLock();
-    private Thread garbageCollector;
-    private Map<Association.Model, Map<Integer, Node>> nodeCache;
-    private final Map<Node, AtomicDouble> accessStatistics;
+    // one table of nodes and edges per model type, the enum map itself is filled once and never changes
+    private final Map<Association.Model, NodeTable> nodeCache;
+    // which nodes keep their attributes in memory, fed by findNode
+    private final NodeCachePolicy cachePolicy;
     public Graph() {
-        this.nodeCache = new HashMap<>();
-        this.accessStatistics = Collections.synchronizedMap(new HashMap<>());
-        this.garbageCollector = new Thread(new GarbageCollector());
-        this.garbageCollector.start();
+        this.nodeCache = new EnumMap<>(Association.Model.class);
+        for(Association.Model model : Association.Model.values()) {
+            nodeCache.put(model, new NodeTable(Main.getModelByType(model).getAssociationsMeta()));
+        }
+        this.cachePolicy = new NodeCachePolicy();
     }
 
     public void addNode(@NonNull Association.Model model, int id, @NonNull Node node) {
         lock.lock();
         try {
             node.getModel().setNodeCache(this);
-            nodeCache.putIfAbsent(model, new HashMap<>());
-            Map<Integer, Node> resourceMap = nodeCache.get(model);
-            resourceMap.putIfAbsent(id, node);
+            nodeCache.get(model).add(id, node);
         } finally {
             lock.unlock();
         }
@@ -41,26 +44,43 @@ public class Graph {
     public void connectNodes(@NonNull Node node, @NonNull Node target, @NonNull Association association) {
         lock.lock();
         try {
-            node.addEdge(new Edge(node, target, association));
+            NodeTable table = nodeCache.get(node.getModel().getType());
+            table.addTarget(node.getIndex(), slotFor(table, association.getAssociationName()), target.getIndex());
         } finally {
             lock.unlock();
         }
     }
 
+    private static int slotFor(NodeTable table, String associationName) {
+        int slot = table.slot(associationName);
+        if(slot < 0) throw new RuntimeException("Unknown association: "+associationName);
+        return slot;
+    }
+
+    private Node targetAt(NodeTable table, int slot, int index) {
+        return nodeCache.get(table.association(slot).getModel()).nodeAt(index);
+    }
+
+    // the nodes the given node is linked to through an association, in the order they were linked
+    public List<Node> getRelatives(@NonNull Node node, @NonNull String associationName) {
+        NodeTable table = nodeCache.get(node.getModel().getType());
+        int slot = table.slot(associationName);
+        if(slot < 0 || node.getIndex() < 0) return Collections.emptyList();
+        NodeTable targetTable = nodeCache.get(table.association(slot).getModel());
+        List<Node> relatives = new ArrayList<>();
+        table.forEachTarget(node.getIndex(), slot, index -> {
+            Node target = targetTable.nodeAt(index);
+            if(target!=null) relatives.add(target);
+        });
+        return relatives;
+    }
+
     public Node findNode(@NonNull Association.Model model, int id) {
-        lock.lock();
-        try {
-            Node node = nodeCache.getOrDefault(model, Collections.emptyMap()).get(id);
-            if(node!=null) {
-                synchronized (accessStatistics) {
-                    accessStatistics.putIfAbsent(node, new AtomicDouble(0L));
-                    accessStatistics.get(node).getAndAdd(1d);
-                }
-            }
-            return node;
-        } finally {
-            lock.unlock();
+        Node node = nodeCache.get(model).get(id);
+        if(node!=null) {
+            cachePolicy.recordAccess(node);
         }
+        return node;
     }
 
     public Model findByName(Association.Model type, String name, boolean createIfNotPresent) {
@@ -94,17 +114,17 @@ public class Graph {
     }
 
     public boolean areAlreadyConnected(@NonNull Association.Model model, int id, @NonNull Association.Model otherModel, int otherId) {
-        lock.lock();
-        try {
-            Node node1 = findNode(model, id);
-            Node node2 = findNode(otherModel, otherId);
-            Set<Node> node1Relatives = new HashSet<>();
-            Function<String,Boolean> recursiveIf =  key -> key.contains(model.toString()) || key.contains(otherModel.toString());
-            findRelativesHelper(node1, node1Relatives, recursiveIf);
-            return node1Relatives.contains(node2);
-        } finally {
-            lock.unlock();
-        }
+        return areAlreadyConnected(model, id, otherModel, otherId, null);
+    }
+
+    // ignoreAssociationName skips the first node's own edges of that association, for when they are about to be replaced
+    public boolean areAlreadyConnected(@NonNull Association.Model model, int id, @NonNull Association.Model otherModel, int otherId, String ignoreAssociationName) {
+        Node node1 = findNode(model, id);
+        Node node2 = findNode(otherModel, otherId);
+        Set<Node> node1Relatives = new HashSet<>();
+        Function<String,Boolean> recursiveIf =  key -> key.contains(model.toString()) || key.contains(otherModel.toString());
+        findRelativesHelper(node1, node1Relatives, recursiveIf, node1, ignoreAssociationName);
+        return node1Relatives.contains(node2);
     }
 
     // Call this function after updating the underling models and the SQL database
@@ -131,44 +151,56 @@ public class Graph {
     }
 
     public void unlinkNodeFromAssociation(@NonNull Association.Model model, int id, @NonNull Association association) {
-        Node node = nodeCache.getOrDefault(model, new HashMap<>(1)).get(id);
+        Node node = nodeCache.get(model).get(id);
         unlinkNodeFromAssociation(node, association);
     }
 
     public void unlinkNodeFromAssociation(@NonNull Node node, @NonNull Association association) {
         lock.lock();
         try {
-            node.getEdgeMap().getOrDefault(association.getAssociationName(), Collections.emptyList()).forEach(edge -> {
-                edge.getTarget().getEdgeMap().getOrDefault(association.getReverseAssociationName(), new ArrayList<>(1))
-                        .removeIf(e -> e.getTarget().equals(node));
-                edge.getTarget().getModel().loadAssociations();
-                Association targetAssoc = edge.getTarget().getModel().findAssociation(association.getReverseAssociationName());
-                edge.getTarget().getModel().getAssociations().getOrDefault(targetAssoc, new ArrayList<>(1))
-                        .removeIf(e -> new Node(e).equals(node));
-            });
-            node.getEdgeMap().remove(association.getAssociationName());
+            NodeTable table = nodeCache.get(node.getModel().getType());
+            int slot = table.slot(association.getAssociationName());
+            if(slot < 0) return;
+            for(int index : table.targets(node.getIndex(), slot)) {
+                Node target = targetAt(table, slot, index);
+                if(target==null) continue;
+                unlinkReverse(node, target, association.getReverseAssociationName());
+            }
+            table.setTargets(node.getIndex(), slot, new int[0]);
         } finally {
             lock.unlock();
         }
     }
 
+    // removes node from the target's side of the association and from the target's loaded associations
+    private void unlinkReverse(Node node, Node target, String reverseAssociationName) {
+        NodeTable targetTable = nodeCache.get(target.getModel().getType());
+        int reverseSlot = targetTable.slot(reverseAssociationName);
+        if(reverseSlot >= 0) {
+            targetTable.removeTarget(target.getIndex(), reverseSlot, node.getIndex());
+        }
+        target.getModel().loadAssociations();
+        Association targetAssoc = target.getModel().findAssociation(reverseAssociationName);
+        target.getModel().getAssociations().getOrDefault(targetAssoc, new ArrayList<>(1))
+                .removeIf(e -> e.getNodeKey() == node.getKey());
+    }
+
     public Node deleteNode(@NonNull Association.Model model, int id) {
         lock.lock();
         try {
-            Node node = nodeCache.getOrDefault(model, new HashMap<>(1)).remove(id);
+            NodeTable table = nodeCache.get(model);
+            Node node = table.get(id);
             if(node!=null) {
-                accessStatistics.remove(node);
+                cachePolicy.remove(node);
                 // remove edges
-                node.getEdgeMap().values().forEach(edges->{
-                   edges.forEach(edge->{
-                        edge.getTarget().getEdgeMap().getOrDefault(edge.getAssociation().getReverseAssociationName(), new ArrayList<>(1))
-                        .removeIf(e->e.getTarget().equals(node));
-                        edge.getTarget().getModel().loadAssociations();
-                        Association targetAssoc = edge.getTarget().getModel().findAssociation(edge.getAssociation().getReverseAssociationName());
-                        edge.getTarget().getModel().getAssociations().getOrDefault(targetAssoc, new ArrayList<>(1))
-                               .removeIf(e->new Node(e).equals(node));
-                   });
-                });
+                for(int slot = 0; slot < table.numAssociations(); slot++) {
+                    for(int index : table.targets(node.getIndex(), slot)) {
+                        Node target = targetAt(table, slot, index);
+                        if(target==null) continue;
+                        unlinkReverse(node, target, table.association(slot).getReverseAssociationName());
+                    }
+                }
+                table.remove(id);
             }
             return node;
         } finally {
@@ -177,13 +209,9 @@ public class Graph {
     }
 
     public List<Model> getModelList(@NonNull Association.Model model) {
-        lock.lock();
-        try {
-            Map<Integer, Node> idMap = nodeCache.getOrDefault(model, Collections.emptyMap());
-            return idMap.values().stream().map(Node::getModel).collect(Collectors.toList());
-        } finally {
-            lock.unlock();
-        }
+        List<Model> models = new ArrayList<>(nodeCache.get(model).size());
+        nodeCache.get(model).forEach(node -> models.add(node.getModel()));
+        return models;
     }
 
 
@@ -202,8 +230,8 @@ public class Graph {
             relatives2.add(node2);
 
             // find relatives
-            findRelativesHelper(node1, relatives1, recursiveIf);
-            findRelativesHelper(node2, relatives2, recursiveIf);
+            findRelativesHelper(node1, relatives1, recursiveIf, null, null);
+            findRelativesHelper(node2, relatives2, recursiveIf, null, null);
             for(Node relative1 : relatives1) {
                 if(relatives2.contains(relative1)) {
                     mutualRelatives.add(relative1);
@@ -213,79 +241,96 @@ public class Graph {
         return mutualRelatives;
     }
 
-    private static void findRelativesHelper(@NonNull Node node, @NonNull Collection<Node> relatives, Function<String,Boolean> recurseIfFunction) {
-        Map<String, List<Edge>> edgeMap = node.getEdgeMap();
-        Set<String> keys = new HashSet<>(edgeMap.keySet());
-        boolean seenAll = true;
-        for(String key : keys) {
-            List<Edge> edges = edgeMap.getOrDefault(key, Collections.emptyList());
-            for(Edge edge : edges) {
-                seenAll = seenAll && !relatives.add(edge.getTarget());
-            }
+    private void findRelativesHelper(@NonNull Node node, @NonNull Collection<Node> relatives, Function<String,Boolean> recurseIfFunction, Node ignoreNode, String ignoreKey) {
+        NodeTable table = nodeCache.get(node.getModel().getType());
+        boolean ignoring = ignoreKey!=null && node.equals(ignoreNode);
+        boolean[] seenAll = new boolean[]{true};
+        for(int slot = 0; slot < table.numAssociations(); slot++) {
+            if(ignoring && table.association(slot).getAssociationName().equals(ignoreKey)) continue;
+            NodeTable targetTable = nodeCache.get(table.association(slot).getModel());
+            table.forEachTarget(node.getIndex(), slot, index -> {
+                Node target = targetTable.nodeAt(index);
+                if(target!=null) {
+                    seenAll[0] = seenAll[0] && !relatives.add(target);
+                }
+            });
         }
-        if(!seenAll) { // recurse on revenues
-            for (String key : keys) {
-                List<Edge> edges = edgeMap.getOrDefault(key, Collections.emptyList());
+        if(!seenAll[0]) { // recurse on revenues
+            for(int slot = 0; slot < table.numAssociations(); slot++) {
+                String key = table.association(slot).getAssociationName();
+                if(ignoring && key.equals(ignoreKey)) continue;
                 if (recurseIfFunction.apply(key)) {
-                    for (Edge edge : edges) {
-                        findRelativesHelper(edge.getTarget(), relatives, recurseIfFunction);
-                    }
+                    NodeTable targetTable = nodeCache.get(table.association(slot).getModel());
+                    table.forEachTarget(node.getIndex(), slot, index -> {
+                        Node target = targetTable.nodeAt(index);
+                        if(target!=null) {
+                            findRelativesHelper(target, relatives, recurseIfFunction, ignoreNode, ignoreKey);
+                        }
+                    });
                 }
             }
         }
     }
 
 
-    private static Graph graph;
+    private static volatile Graph graph;
+    // optional window of revenue years kept in the graph (-Dgraph.start_year, -Dgraph.end_year), revenues outside of it are never read
+    private static final Integer startYear = Integer.getInteger("graph.start_year");
+    private static final Integer endYear = Integer.getInteger("graph.end_year", startYear == null ? null : Integer.valueOf(9999));
+    // types loaded at once by Graph.load, each holding a pooled connection while it runs
+    private static final int loadThreads = Integer.getInteger("graph.load_threads", 4);
     public static Graph load() {
         return load(false);
     }
     public static Graph load(boolean force) {
         if(graph!=null && !force) return graph;
-        if(graph!=null) {
-            // stop garbage collector
-            graph.garbageCollector.interrupt();
-        }
-        System.out.println("BUILDING GRAPH!!!");
         lock.lock();
         try {
-            // test graph
-            graph = new Graph();
+            if(graph!=null && !force) return graph;
+            System.out.println("BUILDING GRAPH!!!");
+            // built on the side and published once complete, since readers no longer wait on the lock
+            final Graph newGraph = new Graph();
 
             Association.Model[] modelTypes = Association.Model.values();
-            List<Model> allModels = new ArrayList<>();
-            for (Association.Model modelType : modelTypes) {
-                System.out.println("Loading model type: " + modelType);
-                Model model = Main.getModelByType(modelType);
-                List<Model> models = Database.selectAll(model.isRevenueModel(), modelType, model.getTableName(),
-                        model.getAvailableAttributes().stream().filter(f -> f.endsWith("_id")).collect(Collectors.toList()), null, null);
-                allModels.addAll(models);
-                for (Model instance : models) {
-                    graph.addNode(modelType, instance.getId(), new Node(instance));
+            long start = System.currentTimeMillis();
+            // one type per task, each on its own pooled connection and the only writer of its type's table
+            Map<Association.Model,List<Node>> nodesByType = new EnumMap<>(Association.Model.class);
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(loadThreads, modelTypes.length));
+            try {
+                Map<Association.Model,Future<List<Node>>> loads = new EnumMap<>(Association.Model.class);
+                for (Association.Model modelType : modelTypes) {
+                    loads.put(modelType, executor.submit(() -> newGraph.loadNodes(modelType)));
                 }
+                for (Association.Model modelType : modelTypes) {
+                    nodesByType.put(modelType, loads.get(modelType).get());
+                }
+            } finally {
+                executor.shutdown();
             }
+            long nodesLoaded = System.currentTimeMillis();
 
             System.out.println("Adding connections...");
-            // need to add edges
-            for (Model model : allModels) {
-                Node node = graph.findNode(Association.Model.valueOf(model.getClass().getSimpleName()), model.getId());
-                for (Association association : model.getAssociationsMeta()) {
+            // the index of each node's parent per ManyToOne association (-1 for none), resolved in parallel
+            Map<Association.Model,int[][]> parents = new EnumMap<>(Association.Model.class);
+            for (Association.Model modelType : modelTypes) {
+                NodeTable table = newGraph.nodeCache.get(modelType);
+                List<Node> nodes = nodesByType.get(modelType);
+                int[][] typeParents = new int[table.numAssociations()][];
+                for (int slot = 0; slot < table.numAssociations(); slot++) {
+                    Association association = table.association(slot);
                     switch (association.getType()) {
                         case ManyToOne: {
                             // model has the parent id
-                            Integer assocId = (Integer) model.getData().get(association.getParentIdField());
-                            if (assocId != null) {
-                                // try find parent
-                                Node assoc = graph.findNode(association.getModel(), assocId);
-                                graph.connectNodes(node, assoc, association);
-                                Association reverseAssociation = assoc.getModel().getAssociationsMeta()
-                                        .stream().filter(a -> a.getAssociationName().equals(association.getReverseAssociationName()))
-                                        .findAny().orElse(null);
-
-                                if (reverseAssociation != null) {
-                                    graph.connectNodes(assoc, node, reverseAssociation);
-                                }
-                            }
+                            NodeTable assocTable = newGraph.nodeCache.get(association.getModel());
+                            String parentIdField = association.getParentIdField();
+                            int[] slotParents = new int[nodes.size()];
+                            IntStream.range(0, nodes.size()).parallel().forEach(i -> {
+                                Integer assocId = (Integer) nodes.get(i).getModel().getData().get(parentIdField);
+                                Node assoc = assocId == null ? null : assocTable.get(assocId);
+                                // parents outside of the year window are not in the graph
+                                slotParents[i] = assoc == null ? -1 : assoc.getIndex();
+                            });
+                            typeParents[slot] = slotParents;
                             break;
                         }
                         case OneToMany: {
@@ -298,54 +343,78 @@ public class Graph {
                         }
                     }
                 }
+                parents.put(modelType, typeParents);
             }
+            long foreignKeysResolved = System.currentTimeMillis();
+
+            // each table queues its own edges, the ManyToOne ones it holds and their reverses pointing at it, then lays
+            // them out as arrays
+            Arrays.stream(modelTypes).parallel().forEach(modelType -> {
+                NodeTable table = newGraph.nodeCache.get(modelType);
+                for (Association.Model sourceType : modelTypes) {
+                    NodeTable sourceTable = newGraph.nodeCache.get(sourceType);
+                    int[][] sourceParents = parents.get(sourceType);
+                    for (int slot = 0; slot < sourceParents.length; slot++) {
+                        int[] slotParents = sourceParents[slot];
+                        if (slotParents == null) continue;
+                        if (sourceType == modelType) {
+                            for (int i = 0; i < slotParents.length; i++) {
+                                if (slotParents[i] >= 0) table.addPendingEdge(i, slot, slotParents[i]);
+                            }
+                        }
+                        Association association = sourceTable.association(slot);
+                        int reverseSlot = association.getModel() == modelType ? table.slot(association.getReverseAssociationName()) : -1;
+                        if (reverseSlot >= 0) {
+                            for (int i = 0; i < slotParents.length; i++) {
+                                if (slotParents[i] >= 0) table.addPendingEdge(slotParents[i], reverseSlot, i);
+                            }
+                        }
+                    }
+                }
+                table.buildEdges();
+            });
+            long edgesBuilt = System.currentTimeMillis();
+            System.out.println("Graph load timing: nodes " + (nodesLoaded - start) + "ms, foreign keys " + (foreignKeysResolved - nodesLoaded)
+                    + "ms, edges " + (edgesBuilt - foreignKeysResolved) + "ms, total " + (edgesBuilt - start) + "ms");
+            graph = newGraph;
+            System.out.println("FINISHED GRAPH!!!");
+            return newGraph;
         } catch(Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Error creating graph: "+e.getMessage());
         } finally {
             lock.unlock();
-            System.out.println("FINISHED GRAPH!!!");
         }
-        return graph;
     }
 
 
-    public static void main(String[] args) throws Exception {
-        load();
+    // the nodes of one type as read from the database, in index order. Called from the load tasks, so it writes the
+    // table directly instead of taking the lock the loading thread holds
+    private List<Node> loadNodes(Association.Model modelType) throws SQLException {
+        long start = System.currentTimeMillis();
+        Model model = Main.getModelByType(modelType);
+        NodeTable table = nodeCache.get(modelType);
+        List<Node> nodes = new ArrayList<>();
+        // nodes are added as rows stream in, rather than after the whole table is in memory. The hot attributes
+        // come along so that reading the graph does not go back to the database per node
+        Database.selectAll(model.isRevenueModel(), modelType, model.getTableName(),
+                model.getHotAttributes(), null, null,
+                startYear, endYear, Database.getDefaultJoinStrategy(), instance -> {
+            Node node = new Node(instance);
+            instance.setNodeCache(this);
+            if(table.add(instance.getId(), node)==null) {
+                nodes.add(node);
+            }
+        });
+        System.out.println("Loaded " + nodes.size() + " " + modelType + " nodes in " + (System.currentTimeMillis() - start) + "ms");
+        return nodes;
     }
 
+    public Map<String,Object> getCacheStats() {
+        return cachePolicy.getStats();
+    }
 
-    private class GarbageCollector implements Runnable {
-        private final long runEveryMS = 30 * 1000L;
-        private final double keepDataPercent = 0.1;
-        @Override
-        public void run() {
-            while(!Thread.interrupted()) {
-                System.out.println("Running GC... "+Runtime.getRuntime().freeMemory());
-                runGC();
-                try {
-                    TimeUnit.MILLISECONDS.sleep(runEveryMS);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    break;
-                }
-            }
-            System.out.println("Interrupted GC.");
-        }
-
-        private void runGC() {
-            // Delete inner data/associations from nodes that are rarely accessed
-            synchronized (accessStatistics) {
-                final int limit = Math.round(accessStatistics.size() * (float) keepDataPercent);
-                AtomicInteger cnt = new AtomicInteger(0);
-                accessStatistics.entrySet().stream().sorted(Comparator.comparingDouble(e -> e.getValue().get()))
-                        .filter(e -> cnt.getAndIncrement() < limit || e.getValue().get() <= 1 || !e.getKey().getModel().existsInDatabase())
-                        .limit(limit).forEach(e -> {
-                    e.getKey().getModel().purgeMemory();
-                    accessStatistics.put(e.getKey(), new AtomicDouble(0));
-                });
-            }
-            System.gc();
-        }
+    public static void main(String[] args) throws Exception {
+        load();
     }
 }
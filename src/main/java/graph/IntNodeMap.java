@@ -0,0 +1,122 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+// open addressing table of id -> node, without boxing ids or allocating an entry per node.
+// Writes must be serialized by the caller (the graph lock), reads need no lock: a slot's id is written before
+// its node, and the node is read first, so a reader that sees a node also sees its id.
+class IntNodeMap {
+    private static final Object REMOVED = new Object();
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private static final class Table {
+        private final int[] ids;
+        private final AtomicReferenceArray<Object> nodes;
+        private final int mask;
+        private Table(int capacity) {
+            this.ids = new int[capacity];
+            this.nodes = new AtomicReferenceArray<>(capacity);
+            this.mask = capacity-1;
+        }
+    }
+
+    private volatile Table table;
+    private volatile int size;
+    // live nodes plus removed markers, removed slots are not reused until the next resize
+    private int used;
+
+    IntNodeMap() {
+        this(16);
+    }
+
+    IntNodeMap(int expectedSize) {
+        this.table = new Table(capacityFor(expectedSize));
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = 16;
+        while(capacity * LOAD_FACTOR < expectedSize) capacity <<= 1;
+        return capacity;
+    }
+
+    private static int slot(int id, int mask) {
+        // spread sequential ids so neighbouring rows do not form long probe runs
+        int h = id * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    int size() {
+        return size;
+    }
+
+    Node get(int id) {
+        Table t = table;
+        for(int i = slot(id, t.mask); ; i = (i+1) & t.mask) {
+            Object node = t.nodes.get(i);
+            if(node==null) return null;
+            if(node!=REMOVED && t.ids[i]==id) return (Node) node;
+        }
+    }
+
+    // returns the node already stored for the id, or null after adding this one
+    Node putIfAbsent(int id, Node node) {
+        Node existing = get(id);
+        if(existing!=null) return existing;
+        if(used+1 > table.nodes.length() * LOAD_FACTOR) {
+            resize(capacityFor(size+1));
+        }
+        insert(table, id, node);
+        used++;
+        size++;
+        return null;
+    }
+
+    Node remove(int id) {
+        Table t = table;
+        for(int i = slot(id, t.mask); ; i = (i+1) & t.mask) {
+            Object node = t.nodes.get(i);
+            if(node==null) return null;
+            if(node!=REMOVED && t.ids[i]==id) {
+                t.nodes.set(i, REMOVED);
+                size--;
+                return (Node) node;
+            }
+        }
+    }
+
+    void forEach(Consumer<Node> consumer) {
+        Table t = table;
+        for(int i = 0; i < t.nodes.length(); i++) {
+            Object node = t.nodes.get(i);
+            if(node!=null && node!=REMOVED) consumer.accept((Node) node);
+        }
+    }
+
+    List<Node> values() {
+        List<Node> values = new ArrayList<>(size);
+        forEach(values::add);
+        return values;
+    }
+
+    private static void insert(Table t, int id, Node node) {
+        int i = slot(id, t.mask);
+        while(t.nodes.get(i)!=null) i = (i+1) & t.mask;
+        t.ids[i] = id;
+        t.nodes.set(i, node);
+    }
+
+    // rehashes into a new table that readers pick up once it is complete
+    private void resize(int capacity) {
+        Table old = table;
+        Table t = new Table(Math.max(capacity, 16));
+        for(int i = 0; i < old.nodes.length(); i++) {
+            Object node = old.nodes.get(i);
+            if(node!=null && node!=REMOVED) insert(t, old.ids[i], (Node) node);
+        }
+        used = size;
+        table = t;
+    }
+}
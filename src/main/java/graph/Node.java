@@ -5,38 +5,37 @@ import lombok.NonNull;
 import models.Association;
 import models.Model;
 
-import java.util.*;
-
 public class Node {
     @Getter
     private final Model model;
+    // model type and id packed into one long, see keyFor
+    @Getter
+    private final long key;
+    // position in its type's NodeTable, -1 for nodes that are not in a graph
     @Getter
-    private Map<String,List<Edge>> edgeMap;
+    private int index = -1;
     public Node(@NonNull Model model) {
         this.model=model;
-        this.edgeMap = new HashMap<>();
+        this.key=keyFor(model.getType(), model.getId()==null ? -1 : model.getId());
     }
 
-    public void addEdge(Edge edge) {
-        edgeMap.putIfAbsent(edge.getAssociation().getAssociationName(), new ArrayList<>());
-        List<Edge> edges = edgeMap.get(edge.getAssociation().getAssociationName());
-        if(!edges.contains(edge)) {
-            edges.add(edge);
-        }
+    public static long keyFor(@NonNull Association.Model type, int id) {
+        return ((long) type.ordinal() << 32) | (id & 0xffffffffL);
     }
 
+    void setIndex(int index) {
+        this.index=index;
+    }
 
     @Override
     public boolean equals(Object other) {
         if(!(other instanceof Node)) return false;
 
-        return (model.getClass().getSimpleName()+model.getId()).equals(
-                ((Node)other).model.getClass().getSimpleName()+((Node)other).model.getId()
-        );
+        return key == ((Node)other).key;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(model.getClass().getSimpleName(), model.getId());
+        return Long.hashCode(key * 0x9E3779B97F4A7C15L);
     }
 }
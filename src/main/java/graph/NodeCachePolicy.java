@@ -0,0 +1,243 @@
+package graph;
+
+import models.AttributeMap;
+import models.Model;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// decides which nodes keep their attributes and associations in memory, W-TinyLFU style. Accessed nodes enter a
+// small LRU window, and when the window overflows its oldest node only displaces the oldest node of the main
+// (probation then protected) segments if the frequency sketch has seen it more often. Evicted nodes are purged
+// with Model.purgeMemory and load again from the database when next used.
+// Purging happens on its own thread, never the one that triggered the eviction: that thread may be inside a
+// synchronized method of the evicted model, walking its associations, or hold a model another thread's purge waits on.
+// The budget is in estimated bytes of purgeable state (-Dgraph.cache_heap_mb, a quarter of the max heap by default).
+// Accesses are buffered and applied by whichever caller gets the lock, so lookups never wait on eviction.
+class NodeCachePolicy {
+    private static final long budget = Long.getLong("graph.cache_heap_mb", Runtime.getRuntime().maxMemory() / (4L * 1024L * 1024L)) * 1024L * 1024L;
+    private static final int DRAIN_THRESHOLD = 32;
+    private static final int MAX_BUFFERED = 16 * 1024;
+    // rough per node costs used for the estimates
+    private static final long ENTRY_BYTES = 96;
+    private static final long ATTRIBUTE_BYTES = 16;
+    private static final long ASSOCIATION_BYTES = 16;
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // holds no other lock while it waits for a model's monitor in purgeMemory
+    private static final ExecutorService purger = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "node-cache-purger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Entry {
+        private final Node node;
+        private int segment;
+        private long weight;
+        private Entry prev;
+        private Entry next;
+        private Entry(Node node) {
+            this.node=node;
+        }
+    }
+
+    // doubly linked list with the most recently used entry at the head
+    private static final class Segment {
+        private Entry head;
+        private Entry tail;
+        private long weight;
+
+        private void addFirst(Entry entry) {
+            entry.prev = null;
+            entry.next = head;
+            if(head!=null) head.prev = entry;
+            head = entry;
+            if(tail==null) tail = entry;
+            weight += entry.weight;
+        }
+
+        private void remove(Entry entry) {
+            if(entry.prev!=null) entry.prev.next = entry.next;
+            else head = entry.next;
+            if(entry.next!=null) entry.next.prev = entry.prev;
+            else tail = entry.prev;
+            entry.prev = null;
+            entry.next = null;
+            weight -= entry.weight;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<Node> buffer = new ConcurrentLinkedQueue<>();
+    private final Queue<Node> removals = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger buffered = new AtomicInteger(0);
+    private final Map<Node,Entry> entries = new HashMap<>();
+    private final Segment[] segments = new Segment[]{new Segment(), new Segment(), new Segment()};
+    private final FrequencySketch sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, budget / (ENTRY_BYTES * 4)));
+    private final long windowBudget = Math.max(budget / 100, 1);
+    private final long protectedBudget = (budget - windowBudget) * 4 / 5;
+    private long evictions = 0;
+
+    void recordAccess(Node node) {
+        // past the cap accesses are dropped rather than queued, the sketch tolerates the loss
+        if(buffered.get() < MAX_BUFFERED) {
+            buffer.add(node);
+            if(buffered.incrementAndGet() < DRAIN_THRESHOLD) return;
+        }
+        if(lock.tryLock()) {
+            try {
+                drain();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // for deleted nodes, applied with the next drain. Never blocks, since eviction may be waiting on a model
+    // the caller holds.
+    void remove(Node node) {
+        removals.add(node);
+        if(lock.tryLock()) {
+            try {
+                drain();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    Map<String,Object> getStats() {
+        lock.lock();
+        try {
+            drain();
+            Map<String,Object> stats = new LinkedHashMap<>();
+            stats.put("budget_bytes", budget);
+            stats.put("estimated_bytes", weight());
+            stats.put("resident_nodes", entries.size());
+            stats.put("evictions", evictions);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drain() {
+        Node node;
+        while((node = buffer.poll())!=null) {
+            buffered.decrementAndGet();
+            onAccess(node);
+        }
+        while((node = removals.poll())!=null) {
+            Entry entry = entries.remove(node);
+            if(entry!=null) {
+                segments[entry.segment].remove(entry);
+            }
+        }
+        evict();
+    }
+
+    // runs on whichever thread drains, while the model's owner may be loading or the purger purging it, so it only
+    // reads snapshots and never iterates the model's maps
+    private static long weightOf(Node node) {
+        Model model = node.getModel();
+        Map<String,Object> data = model.getData();
+        long weight = ENTRY_BYTES;
+        // hot attributes are never purged, so only the cold ones count. Rows created in this session keep their form's
+        // map and are not estimated
+        if(data instanceof AttributeMap) {
+            AttributeMap attributes = (AttributeMap) data;
+            weight += ATTRIBUTE_BYTES * attributes.numColdValues() + 2L * attributes.coldTextLength();
+        }
+        weight += ASSOCIATION_BYTES * model.getNumLoadedAssociations();
+        return weight;
+    }
+
+    private void onAccess(Node node) {
+        sketch.increment(node.getKey());
+        Entry entry = entries.get(node);
+        if(entry==null) {
+            entry = new Entry(node);
+            entry.segment = WINDOW;
+            entry.weight = weightOf(node);
+            entries.put(node, entry);
+            segments[WINDOW].addFirst(entry);
+            return;
+        }
+        Segment segment = segments[entry.segment];
+        segment.remove(entry);
+        // attributes may have been loaded since the last access
+        entry.weight = weightOf(node);
+        if(entry.segment==PROBATION) {
+            entry.segment = PROTECTED;
+            segments[PROTECTED].addFirst(entry);
+            // keep the protected segment within its share by demoting its oldest entries
+            while(segments[PROTECTED].weight > protectedBudget && segments[PROTECTED].tail!=entry) {
+                Entry demoted = segments[PROTECTED].tail;
+                segments[PROTECTED].remove(demoted);
+                demoted.segment = PROBATION;
+                segments[PROBATION].addFirst(demoted);
+            }
+        } else {
+            segment.addFirst(entry);
+        }
+    }
+
+    private void evict() {
+        while(segments[WINDOW].weight > windowBudget && segments[WINDOW].tail!=null) {
+            Entry candidate = segments[WINDOW].tail;
+            segments[WINDOW].remove(candidate);
+            candidate.segment = PROBATION;
+            segments[PROBATION].addFirst(candidate);
+            // the candidate either displaces the least recently used main entry or is evicted itself
+            while(weight() > budget) {
+                Entry victim = segments[PROBATION].tail!=candidate ? segments[PROBATION].tail : segments[PROTECTED].tail;
+                if(victim!=null && sketch.frequency(candidate.node.getKey()) > sketch.frequency(victim.node.getKey())) {
+                    purge(victim);
+                    continue;
+                }
+                purge(candidate);
+                break;
+            }
+        }
+        // entries grow as their attributes load, so the main segments can go over without anything entering them
+        while(weight() > budget) {
+            Entry victim = segments[PROBATION].tail!=null ? segments[PROBATION].tail : segments[PROTECTED].tail;
+            if(victim==null) break;
+            purge(victim);
+        }
+    }
+
+    private long weight() {
+        return segments[WINDOW].weight + segments[PROBATION].weight + segments[PROTECTED].weight;
+    }
+
+    private void purge(Entry entry) {
+        segments[entry.segment].remove(entry);
+        entries.remove(entry.node);
+        evictions++;
+        Node node = entry.node;
+        purger.execute(() -> purgeIfEvicted(node));
+    }
+
+    private void purgeIfEvicted(Node node) {
+        lock.lock();
+        try {
+            // accessed and admitted again since it was evicted
+            if(entries.containsKey(node)) return;
+        } finally {
+            lock.unlock();
+        }
+        node.getModel().purgeMemory();
+    }
+}
@@ -0,0 +1,139 @@
+package graph;
+
+import models.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// randomized run of the node cache policy against deep revenue calculations, on a market tree built in memory so no
+// database is needed. Run it with a tiny budget (-Dgraph.cache_heap_mb=0 is the default here) so nodes are evicted
+// while the calculations above them are still walking their associations.
+// Usage: NodeCachePolicyStress [depth] [branching] [threads] [calculations per thread]
+public class NodeCachePolicyStress {
+    private static final int START_YEAR = 2015;
+    private static final int END_YEAR = 2017;
+
+    private static void link(Graph graph, Node parent, Node child, String associationName) {
+        Association association = parent.getModel().findAssociation(associationName);
+        graph.connectNodes(parent, child, association);
+        graph.connectNodes(child, parent, child.getModel().findAssociation(association.getReverseAssociationName()));
+    }
+
+    private static Node addMarket(Graph graph, int id, Integer parentId) {
+        Map<String,Object> data = new HashMap<>();
+        data.put(Constants.NAME, "Market "+id);
+        data.put(Constants.PARENT_MARKET_ID, parentId);
+        Node node = new Node(new Market(id, data));
+        graph.addNode(Association.Model.Market, id, node);
+        return node;
+    }
+
+    private static Node addRevenue(Graph graph, int id, int marketId, int year, double value) {
+        Map<String,Object> data = new HashMap<>();
+        data.put(Constants.MARKET_ID, marketId);
+        data.put(Constants.YEAR, year);
+        data.put(Constants.VALUE, value);
+        data.put(Constants.CAGR, null);
+        data.put(Constants.IS_ESTIMATE, false);
+        data.put(Constants.ESTIMATE_TYPE, null);
+        data.put(Constants.REGION_ID, null);
+        data.put(Constants.PARENT_REVENUE_ID, null);
+        Node node = new Node(new MarketRevenue(id, data));
+        graph.addNode(Association.Model.MarketRevenue, id, node);
+        return node;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(System.getProperty("graph.cache_heap_mb")==null) {
+            System.setProperty("graph.cache_heap_mb", "0");
+        }
+        int depth = args.length > 0 ? Integer.valueOf(args[0]) : 6;
+        int branching = args.length > 1 ? Integer.valueOf(args[1]) : 3;
+        int numThreads = args.length > 2 ? Integer.valueOf(args[2]) : 8;
+        int calculations = args.length > 3 ? Integer.valueOf(args[3]) : 2000;
+
+        Graph graph = new Graph();
+        List<Node> markets = new ArrayList<>();
+        // sum of the leaf revenues under each market, what calculateRevenue should return for it
+        Map<Integer,Double> expected = new HashMap<>();
+        Random random = new Random(7);
+        int[] revenueIds = new int[]{1};
+        markets.add(addMarket(graph, 1, null));
+        List<Node> level = Collections.singletonList(markets.get(0));
+        for(int d = 1; d <= depth; d++) {
+            List<Node> next = new ArrayList<>();
+            for(Node parent : level) {
+                for(int b = 0; b < branching; b++) {
+                    Node child = addMarket(graph, markets.size()+1, parent.getModel().getId());
+                    markets.add(child);
+                    next.add(child);
+                    link(graph, parent, child, "Sub Market");
+                }
+            }
+            level = next;
+        }
+        for(Node leaf : level) {
+            int marketId = leaf.getModel().getId();
+            double total = 0d;
+            for(int year = START_YEAR; year <= END_YEAR; year++) {
+                double value = 1 + random.nextInt(100);
+                total += value;
+                link(graph, leaf, addRevenue(graph, revenueIds[0]++, marketId, year, value), "Market Revenue");
+            }
+            expected.put(marketId, total);
+        }
+        for(int i = markets.size()-1; i >= 0; i--) {
+            Node market = markets.get(i);
+            Integer parentId = (Integer) market.getModel().getData().get(Constants.PARENT_MARKET_ID);
+            if(parentId!=null) {
+                expected.merge(parentId, expected.getOrDefault(market.getModel().getId(), 0d), Double::sum);
+            }
+        }
+        System.out.println("Built "+markets.size()+" markets and "+(revenueIds[0]-1)+" revenues, budget "+System.getProperty("graph.cache_heap_mb")+" MB");
+
+        AtomicInteger failures = new AtomicInteger(0);
+        AtomicInteger mismatches = new AtomicInteger(0);
+        Map<String,Integer> errors = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        for(int t = 0; t < numThreads; t++) {
+            final long seed = t;
+            futures.add(executor.submit(() -> {
+                Random threadRandom = new Random(seed);
+                for(int i = 0; i < calculations; i++) {
+                    // biased towards the top of the tree, where the traversals are deepest
+                    Model market = markets.get(threadRandom.nextInt(threadRandom.nextBoolean() ? Math.min(markets.size(), 1+branching) : markets.size())).getModel();
+                    try {
+                        double revenue = market.calculateRevenue(Model.RevenueDomain.global, null, START_YEAR, END_YEAR, false, false, Constants.MissingRevenueOption.replace, null, false, null, null, null);
+                        if(Math.abs(revenue - expected.get(market.getId())) > 1e-6) {
+                            mismatches.incrementAndGet();
+                        }
+                    } catch(Exception e) {
+                        failures.incrementAndGet();
+                        errors.merge(e.getClass().getSimpleName(), 1, Integer::sum);
+                        if(failures.get() <= 3) e.printStackTrace();
+                    }
+                    if(threadRandom.nextInt(50)==0) {
+                        // a show page or an edit pulls in the cold attributes, which the policy evicts again
+                        market.getData().put(Constants.NOTES, "Notes for "+market.getId());
+                    }
+                }
+            }));
+        }
+        for(Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println("Ran "+(numThreads*calculations)+" calculations in "+(System.currentTimeMillis()-start)+"ms");
+        System.out.println("Failures: "+failures.get()+" "+errors+", wrong totals: "+mismatches.get());
+        System.out.println("Cache: "+graph.getCacheStats());
+        System.exit(failures.get()==0 && mismatches.get()==0 ? 0 : 1);
+    }
+}
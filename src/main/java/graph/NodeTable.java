@@ -0,0 +1,251 @@
+package graph;
+
+import models.Association;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+// the nodes of one model type and their outgoing edges. Each node gets an index within the type, and the edges of
+// each association are stored compressed sparse row: the targets of node i are targets[slot][offsets[slot][i]] up to
+// targets[slot][offsets[slot][i+1]], as indexes into the target type's table.
+// Edits after the build go to an overlay holding the full target list of each edited (node, association), which is
+// folded back into the arrays once it grows. Writes are serialized by the graph lock, reads need no lock.
+class NodeTable {
+    private static final int COMPACT_AFTER = 4096;
+
+    private static final class Edges {
+        // nodes covered by the arrays, nodes added later only have overlay edges
+        private final int size;
+        private final int[][] offsets;
+        private final int[][] targets;
+        // (slot << 32 | index) -> targets
+        private final Map<Long,int[]> overlay = new ConcurrentHashMap<>();
+        private Edges(int size, int[][] offsets, int[][] targets) {
+            this.size=size;
+            this.offsets=offsets;
+            this.targets=targets;
+        }
+    }
+
+    private static final int[] NO_TARGETS = new int[0];
+
+    private final List<Association> associations;
+    private final Map<String,Integer> slots = new HashMap<>();
+    private final IntNodeMap byId = new IntNodeMap();
+    private volatile Node[] byIndex = new Node[16];
+    private int count;
+    private volatile Edges edges;
+    // edges queued by addPendingEdge until buildEdges, per slot as (index, target) pairs
+    private int[][] pending;
+    private int[] numPending;
+
+    NodeTable(List<Association> associations) {
+        this.associations = new ArrayList<>(associations);
+        for(int slot = 0; slot < associations.size(); slot++) {
+            slots.put(associations.get(slot).getAssociationName(), slot);
+        }
+        this.edges = emptyEdges(0);
+    }
+
+    private Edges emptyEdges(int size) {
+        int[][] offsets = new int[associations.size()][];
+        int[][] targets = new int[associations.size()][];
+        for(int slot = 0; slot < associations.size(); slot++) {
+            offsets[slot] = new int[size+1];
+            targets[slot] = NO_TARGETS;
+        }
+        return new Edges(size, offsets, targets);
+    }
+
+    int numAssociations() {
+        return associations.size();
+    }
+
+    Association association(int slot) {
+        return associations.get(slot);
+    }
+
+    // -1 when the type has no association of that name
+    int slot(String associationName) {
+        Integer slot = slots.get(associationName);
+        return slot == null ? -1 : slot;
+    }
+
+    int size() {
+        return byId.size();
+    }
+
+    Node get(int id) {
+        return byId.get(id);
+    }
+
+    Node nodeAt(int index) {
+        Node[] nodes = byIndex;
+        return index < nodes.length ? nodes[index] : null;
+    }
+
+    void forEach(Consumer<Node> consumer) {
+        byId.forEach(consumer);
+    }
+
+    // returns the node already stored for the id, or null after adding this one
+    Node add(int id, Node node) {
+        Node existing = byId.get(id);
+        if(existing!=null) return existing;
+        Node[] nodes = byIndex;
+        if(count==nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length*2);
+        }
+        node.setIndex(count);
+        nodes[count++] = node;
+        byIndex = nodes;
+        byId.putIfAbsent(id, node);
+        return null;
+    }
+
+    Node remove(int id) {
+        Node node = byId.remove(id);
+        if(node!=null) {
+            for(int slot = 0; slot < associations.size(); slot++) {
+                setTargets(node.getIndex(), slot, NO_TARGETS);
+            }
+            Node[] nodes = byIndex;
+            nodes[node.getIndex()] = null;
+            byIndex = nodes;
+        }
+        return node;
+    }
+
+    void forEachTarget(int index, int slot, IntConsumer consumer) {
+        Edges edges = this.edges;
+        if(!edges.overlay.isEmpty()) {
+            int[] targets = edges.overlay.get(key(index, slot));
+            if(targets!=null) {
+                for(int target : targets) consumer.accept(target);
+                return;
+            }
+        }
+        if(index >= edges.size) return;
+        int[] targets = edges.targets[slot];
+        for(int i = edges.offsets[slot][index], end = edges.offsets[slot][index+1]; i < end; i++) {
+            consumer.accept(targets[i]);
+        }
+    }
+
+    int[] targets(int index, int slot) {
+        Edges edges = this.edges;
+        int[] targets = edges.overlay.get(key(index, slot));
+        if(targets!=null) return targets;
+        if(index >= edges.size) return NO_TARGETS;
+        return Arrays.copyOfRange(edges.targets[slot], edges.offsets[slot][index], edges.offsets[slot][index+1]);
+    }
+
+    void addTarget(int index, int slot, int target) {
+        int[] targets = targets(index, slot);
+        for(int existing : targets) {
+            if(existing==target) return;
+        }
+        int[] updated = Arrays.copyOf(targets, targets.length+1);
+        updated[targets.length] = target;
+        setTargets(index, slot, updated);
+    }
+
+    void removeTarget(int index, int slot, int target) {
+        int[] targets = targets(index, slot);
+        int[] updated = Arrays.stream(targets).filter(t -> t!=target).toArray();
+        if(updated.length!=targets.length) {
+            setTargets(index, slot, updated);
+        }
+    }
+
+    void setTargets(int index, int slot, int[] targets) {
+        Edges edges = this.edges;
+        edges.overlay.put(key(index, slot), targets);
+        if(edges.overlay.size() >= COMPACT_AFTER) {
+            compact();
+        }
+    }
+
+    private static long key(int index, int slot) {
+        return ((long) slot << 32) | index;
+    }
+
+    void addPendingEdge(int index, int slot, int target) {
+        if(pending==null) {
+            pending = new int[associations.size()][];
+            numPending = new int[associations.size()];
+        }
+        int[] pairs = pending[slot];
+        if(pairs==null) {
+            pairs = pending[slot] = new int[32];
+        } else if(numPending[slot]*2+2 > pairs.length) {
+            pairs = pending[slot] = Arrays.copyOf(pairs, pairs.length*2);
+        }
+        pairs[numPending[slot]*2] = index;
+        pairs[numPending[slot]*2+1] = target;
+        numPending[slot]++;
+    }
+
+    // lays the pending edges out as arrays, keeping the order they were added in per node
+    void buildEdges() {
+        Edges built = emptyEdges(count);
+        if(pending!=null) {
+            for(int slot = 0; slot < associations.size(); slot++) {
+                if(pending[slot]==null) continue;
+                int[] pairs = pending[slot];
+                int n = numPending[slot];
+                int[] offsets = built.offsets[slot];
+                for(int i = 0; i < n; i++) {
+                    offsets[pairs[i*2]+1]++;
+                }
+                for(int i = 0; i < count; i++) {
+                    offsets[i+1] += offsets[i];
+                }
+                int[] targets = new int[n];
+                int[] next = Arrays.copyOf(offsets, count);
+                for(int i = 0; i < n; i++) {
+                    targets[next[pairs[i*2]]++] = pairs[i*2+1];
+                }
+                built.targets[slot] = targets;
+            }
+        }
+        pending = null;
+        numPending = null;
+        edges = built;
+    }
+
+    // folds the overlay back into the arrays, readers keep using the previous arrays until the new ones are published
+    void compact() {
+        Edges old = this.edges;
+        Edges built = emptyEdges(count);
+        for(int slot = 0; slot < associations.size(); slot++) {
+            int[] offsets = built.offsets[slot];
+            int total = 0;
+            for(int i = 0; i < count; i++) {
+                offsets[i] = total;
+                total += degree(old, i, slot);
+            }
+            offsets[count] = total;
+            int[] targets = new int[total];
+            for(int i = 0; i < count; i++) {
+                int[] overlay = old.overlay.get(key(i, slot));
+                if(overlay!=null) {
+                    System.arraycopy(overlay, 0, targets, offsets[i], overlay.length);
+                } else if(i < old.size) {
+                    System.arraycopy(old.targets[slot], old.offsets[slot][i], targets, offsets[i], old.offsets[slot][i+1]-old.offsets[slot][i]);
+                }
+            }
+            built.targets[slot] = targets;
+        }
+        edges = built;
+    }
+
+    private static int degree(Edges edges, int index, int slot) {
+        int[] overlay = edges.overlay.get(key(index, slot));
+        if(overlay!=null) return overlay.length;
+        if(index >= edges.size) return 0;
+        return edges.offsets[slot][index+1]-edges.offsets[slot][index];
+    }
+}
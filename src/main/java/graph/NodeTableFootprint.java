@@ -0,0 +1,204 @@
+package graph;
+
+import controllers.Main;
+import models.Association;
+import models.Model;
+
+import java.util.*;
+
+// run against a seeded database (seed.SeedTestData) to compare the heap used by the graph's node and edge layout
+// with the one it replaced: a HashMap<Integer,Node> per type, with every Node holding a map of association name to
+// Edge objects. Both layouts are measured with their Node instances and edges, only the models are shared.
+// With "--synthetic <nodes per type>" the nodes are made up in memory instead, for when no database is at hand. Each
+// node then gets one parent per ManyToOne association, and the reverse edge on the parent.
+public class NodeTableFootprint {
+    // the Node and Edge of the old layout, field for field
+    private static final class OldNode {
+        private final Model model;
+        private final Map<String,List<OldEdge>> edgeMap = new HashMap<>();
+        private OldNode(Model model) {
+            this.model=model;
+        }
+    }
+
+    private static final class OldEdge {
+        private final Association association;
+        private final OldNode node;
+        private final OldNode target;
+        private OldEdge(OldNode node, OldNode target, Association association) {
+            this.association=association;
+            this.node=node;
+            this.target=target;
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // a few rounds, the collector does not always finish in one
+        for(int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch(InterruptedException e) {
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory()-runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024d * 1024d));
+    }
+
+    // ids are sequential like the database's, with a few gaps left by deleted rows
+    private static List<Model> syntheticModels(Association.Model type, int count) throws Exception {
+        Class<? extends Model> modelClass = Main.getModelByType(type).getClass();
+        List<Model> models = new ArrayList<>(count);
+        Random random = new Random(type.ordinal());
+        int id = 0;
+        for(int i = 0; i < count; i++) {
+            id += random.nextInt(10)==0 ? 2 : 1;
+            models.add(modelClass.getConstructor(Integer.class, Map.class).newInstance(id, new HashMap<>()));
+        }
+        return models;
+    }
+
+    // edges as (position, association slot, target position) triples into the models of each type
+    private static void syntheticEdges(Association.Model type, Map<Association.Model,List<Model>> models, Map<Association.Model,List<int[]>> edges) {
+        List<Association> associations = Main.getModelByType(type).getAssociationsMeta();
+        Random random = new Random(type.ordinal());
+        for(int slot = 0; slot < associations.size(); slot++) {
+            Association association = associations.get(slot);
+            if(!association.getType().equals(Association.Type.ManyToOne)) continue;
+            List<Model> targets = models.get(association.getModel());
+            if(targets.isEmpty()) continue;
+            List<Association> targetAssociations = Main.getModelByType(association.getModel()).getAssociationsMeta();
+            int reverseSlot = -1;
+            for(int s = 0; s < targetAssociations.size(); s++) {
+                if(targetAssociations.get(s).getAssociationName().equals(association.getReverseAssociationName())) reverseSlot = s;
+            }
+            for(int i = 0; i < models.get(type).size(); i++) {
+                int target = random.nextInt(targets.size());
+                edges.get(type).add(new int[]{i, slot, target});
+                if(reverseSlot >= 0) {
+                    edges.get(association.getModel()).add(new int[]{target, reverseSlot, i});
+                }
+            }
+        }
+    }
+
+    private static void graphEdges(Graph graph, Map<Association.Model,List<Model>> models, Map<Association.Model,List<int[]>> edges) {
+        Map<Association.Model,Map<Integer,Integer>> positions = new EnumMap<>(Association.Model.class);
+        models.forEach((type, typeModels) -> {
+            Map<Integer,Integer> typePositions = new HashMap<>();
+            for(int i = 0; i < typeModels.size(); i++) {
+                typePositions.put(typeModels.get(i).getId(), i);
+            }
+            positions.put(type, typePositions);
+        });
+        models.forEach((type, typeModels) -> {
+            List<Association> associations = Main.getModelByType(type).getAssociationsMeta();
+            for(int i = 0; i < typeModels.size(); i++) {
+                Node node = graph.findNode(type, typeModels.get(i).getId());
+                for(int slot = 0; slot < associations.size(); slot++) {
+                    for(Node target : graph.getRelatives(node, associations.get(slot).getAssociationName())) {
+                        edges.get(type).add(new int[]{i, slot, positions.get(target.getModel().getType()).get(target.getModel().getId())});
+                    }
+                }
+            }
+        });
+    }
+
+    private static Map<Association.Model,Map<Integer,OldNode>> oldLayout(Map<Association.Model,List<Model>> models, Map<Association.Model,List<int[]>> edges) {
+        Map<Association.Model,Map<Integer,OldNode>> nodeCache = new HashMap<>();
+        models.forEach((type, typeModels) -> {
+            Map<Integer,OldNode> map = new HashMap<>();
+            typeModels.forEach(model -> map.put(model.getId(), new OldNode(model)));
+            nodeCache.put(type, map);
+        });
+        if(edges!=null) {
+            edges.forEach((type, typeEdges) -> {
+                List<Association> associations = Main.getModelByType(type).getAssociationsMeta();
+                for(int[] edge : typeEdges) {
+                    Association association = associations.get(edge[1]);
+                    OldNode node = nodeCache.get(type).get(models.get(type).get(edge[0]).getId());
+                    OldNode target = nodeCache.get(association.getModel()).get(models.get(association.getModel()).get(edge[2]).getId());
+                    node.edgeMap.computeIfAbsent(association.getAssociationName(), name -> new ArrayList<>()).add(new OldEdge(node, target, association));
+                }
+            });
+        }
+        return nodeCache;
+    }
+
+    private static Map<Association.Model,NodeTable> newLayout(Map<Association.Model,List<Model>> models, Map<Association.Model,List<int[]>> edges) {
+        Map<Association.Model,NodeTable> nodeCache = new EnumMap<>(Association.Model.class);
+        models.forEach((type, typeModels) -> {
+            NodeTable table = new NodeTable(Main.getModelByType(type).getAssociationsMeta());
+            typeModels.forEach(model -> table.add(model.getId(), new Node(model)));
+            nodeCache.put(type, table);
+        });
+        // positions are the node indexes, the models were added in order
+        if(edges!=null) {
+            edges.forEach((type, typeEdges) -> {
+                NodeTable table = nodeCache.get(type);
+                for(int[] edge : typeEdges) {
+                    table.addPendingEdge(edge[0], edge[1], edge[2]);
+                }
+            });
+        }
+        nodeCache.values().forEach(NodeTable::buildEdges);
+        return nodeCache;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean synthetic = args.length > 1 && args[0].equals("--synthetic");
+        Graph graph = synthetic ? null : Graph.load();
+        Map<Association.Model,List<Model>> models = new EnumMap<>(Association.Model.class);
+        Map<Association.Model,List<int[]>> edges = new EnumMap<>(Association.Model.class);
+        int total = 0;
+        for(Association.Model type : Association.Model.values()) {
+            List<Model> typeModels = synthetic ? syntheticModels(type, Integer.valueOf(args[1])) : graph.getModelList(type);
+            models.put(type, typeModels);
+            edges.put(type, new ArrayList<>());
+            total += typeModels.size();
+        }
+        if(synthetic) {
+            for(Association.Model type : Association.Model.values()) {
+                syntheticEdges(type, models, edges);
+            }
+        } else {
+            graphEdges(graph, models, edges);
+        }
+        int numEdges = edges.values().stream().mapToInt(List::size).sum();
+        System.out.println("Measuring node layouts for "+total+" nodes and "+numEdges+" edges...");
+
+        List<Object> keep = new ArrayList<>();
+        long before = usedHeap();
+        keep.add(oldLayout(models, null));
+        long oldNodesBytes = usedHeap() - before;
+        keep.clear();
+
+        before = usedHeap();
+        keep.add(oldLayout(models, edges));
+        long oldBytes = usedHeap() - before;
+        keep.clear();
+
+        before = usedHeap();
+        keep.add(newLayout(models, null));
+        long newNodesBytes = usedHeap() - before;
+        keep.clear();
+
+        before = usedHeap();
+        keep.add(newLayout(models, edges));
+        long newBytes = usedHeap() - before;
+
+        System.out.println("HashMap, Node and Edge objects, nodes only: "+megabytes(oldNodesBytes)+" ("+(total==0 ? 0 : oldNodesBytes/total)+" bytes per node)");
+        System.out.println("HashMap, Node and Edge objects, with edges: "+megabytes(oldBytes)+" ("+(total==0 ? 0 : oldBytes/total)+" bytes per node)");
+        System.out.println("NodeTable, nodes only:                      "+megabytes(newNodesBytes)+" ("+(total==0 ? 0 : newNodesBytes/total)+" bytes per node)");
+        System.out.println("NodeTable, with edges:                      "+megabytes(newBytes)+" ("+(total==0 ? 0 : newBytes/total)+" bytes per node)");
+        System.out.println("Kept "+keep.size()+" layouts.");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,244 @@
+package models;
+
+import lombok.NonNull;
+
+import java.io.Serializable;
+import java.util.*;
+
+// a model's attributes stored in the slots of its type's AttributeSchema instead of a HashMap, so rows carry no
+// per entry objects, repeated keys or boxed numbers. Values of a type the slot does not hold (a year given as text
+// by a form, say) and attributes outside the schema go to an overflow map.
+// Numbers are boxed again on every get, callers reading the same value in a loop should keep it.
+public class AttributeMap extends AbstractMap<String,Object> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final AttributeSchema schema;
+    // slots holding a value (possibly null), and among them the ones holding null
+    private long present;
+    private long nulls;
+    private final long[] primitives;
+    private final Object[] refs;
+    private Map<String,Object> overflow;
+
+    public AttributeMap(@NonNull AttributeSchema schema) {
+        this.schema = schema;
+        this.primitives = schema.numPrimitives == 0 ? null : new long[schema.numPrimitives];
+        this.refs = schema.numRefs == 0 ? null : new Object[schema.numRefs];
+    }
+
+    public AttributeMap(@NonNull AttributeSchema schema, @NonNull Map<String,Object> data) {
+        this(schema);
+        putAll(data);
+    }
+
+    // true when every attribute of the schema has been set
+    public boolean hasAllSlots() {
+        return present == schema.allSlots;
+    }
+
+    public boolean hasHotSlots() {
+        return (present & schema.hotSlots) == schema.hotSlots;
+    }
+
+    // like containsKey, except that an attribute of the schema only counts once it is held in its slot, not while it
+    // sits in the overflow map
+    public boolean isLoaded(String key) {
+        int slot = schema.slot(key);
+        if(slot >= 0) return (present & (1L << slot)) != 0;
+        return overflow != null && overflow.containsKey(key);
+    }
+
+    public boolean hasColdSlots() {
+        return (present & schema.coldSlots) == schema.coldSlots;
+    }
+
+    // cold attributes held in slots and their total text length. Reads only the bitmap and the slot arrays, so it is
+    // safe (if approximate) while another thread writes the row
+    public int numColdValues() {
+        return Long.bitCount(present & schema.coldSlots);
+    }
+
+    public long coldTextLength() {
+        long length = 0;
+        long cold = present & schema.coldSlots;
+        for(int slot = 0; slot < schema.size(); slot++) {
+            if((cold & (1L << slot)) == 0 || schema.kinds[slot] != AttributeSchema.REF) continue;
+            Object value = refs[schema.positions[slot]];
+            if(value instanceof String) length += ((String) value).length();
+        }
+        return length;
+    }
+
+    private Object read(int slot) {
+        if((nulls & (1L << slot)) != 0) return null;
+        int position = schema.positions[slot];
+        switch(schema.kinds[slot]) {
+            case AttributeSchema.INT: {
+                return (int) primitives[position];
+            }
+            case AttributeSchema.DOUBLE: {
+                return Double.longBitsToDouble(primitives[position]);
+            }
+            case AttributeSchema.BOOLEAN: {
+                return primitives[position] != 0;
+            }
+            default: {
+                return refs[position];
+            }
+        }
+    }
+
+    // false when the value does not fit the slot. Numbers are converted to the slot's kind, forms parse every number
+    // field (years and ids included) as a double
+    private boolean write(int slot, Object value) {
+        int position = schema.positions[slot];
+        byte kind = schema.kinds[slot];
+        if(value == null) {
+            if(kind == AttributeSchema.REF) refs[position] = null;
+        } else if(kind == AttributeSchema.INT && value instanceof Number) {
+            primitives[position] = ((Number) value).intValue();
+        } else if(kind == AttributeSchema.DOUBLE && value instanceof Number) {
+            primitives[position] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+        } else if(kind == AttributeSchema.BOOLEAN && value instanceof Boolean) {
+            primitives[position] = ((Boolean) value) ? 1L : 0L;
+        } else if(kind == AttributeSchema.REF) {
+            if(value instanceof String && (schema.internedSlots & (1L << slot)) != 0) {
+                value = StringDictionary.intern((String) value);
+            }
+            refs[position] = value;
+        } else {
+            return false;
+        }
+        long bit = 1L << slot;
+        present |= bit;
+        if(value == null) nulls |= bit;
+        else nulls &= ~bit;
+        return true;
+    }
+
+    private void clear(int slot) {
+        long bit = 1L << slot;
+        present &= ~bit;
+        nulls &= ~bit;
+        if(schema.kinds[slot] == AttributeSchema.REF) refs[schema.positions[slot]] = null;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int slot = schema.slot(key);
+        if(slot >= 0 && (present & (1L << slot)) != 0) return read(slot);
+        return overflow == null ? null : overflow.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int slot = schema.slot(key);
+        if(slot >= 0 && (present & (1L << slot)) != 0) return true;
+        return overflow != null && overflow.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        Object previous = get(key);
+        int slot = schema.slot(key);
+        if(slot >= 0 && write(slot, value)) {
+            if(overflow != null) overflow.remove(key);
+        } else {
+            if(slot >= 0) clear(slot);
+            if(overflow == null) overflow = new HashMap<>(4);
+            overflow.put(key, value);
+        }
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object previous = get(key);
+        int slot = schema.slot(key);
+        if(slot >= 0) clear(slot);
+        if(overflow != null) {
+            overflow.remove(key);
+            if(overflow.isEmpty()) overflow = null;
+        }
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return Long.bitCount(present) + (overflow == null ? 0 : overflow.size());
+    }
+
+    @Override
+    public void clear() {
+        for(int slot = 0; slot < schema.size(); slot++) {
+            clear(slot);
+        }
+        overflow = null;
+    }
+
+    @Override
+    public Set<Entry<String,Object>> entrySet() {
+        return new AbstractSet<Entry<String,Object>>() {
+            @Override
+            public Iterator<Entry<String,Object>> iterator() {
+                return new Iterator<Entry<String,Object>>() {
+                    private int slot = nextSlot(0);
+                    private Iterator<Entry<String,Object>> overflowIterator;
+                    private String last;
+
+                    private int nextSlot(int from) {
+                        for(int s = from; s < schema.size(); s++) {
+                            if((present & (1L << s)) != 0) return s;
+                        }
+                        return -1;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        if(slot >= 0) return true;
+                        if(overflowIterator == null) {
+                            if(overflow == null) return false;
+                            overflowIterator = new ArrayList<>(overflow.entrySet()).iterator();
+                        }
+                        return overflowIterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String,Object> next() {
+                        if(!hasNext()) throw new NoSuchElementException();
+                        Object value;
+                        if(slot >= 0) {
+                            last = schema.names[slot];
+                            value = read(slot);
+                            slot = nextSlot(slot+1);
+                        } else {
+                            Entry<String,Object> entry = overflowIterator.next();
+                            last = entry.getKey();
+                            value = entry.getValue();
+                        }
+                        // entries write through like a HashMap's
+                        return new SimpleEntry<String,Object>(last, value) {
+                            @Override
+                            public Object setValue(Object value) {
+                                AttributeMap.this.put(getKey(), value);
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        if(last == null) throw new IllegalStateException();
+                        AttributeMap.this.remove(last);
+                        last = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return AttributeMap.this.size();
+            }
+        };
+    }
+}
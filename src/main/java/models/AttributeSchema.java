@@ -0,0 +1,117 @@
+package models;
+
+import lombok.NonNull;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// slot layout of a model type's attributes, shared by all of its AttributeMaps. Ids, years and estimate types are
+// int slots, values and cagrs double slots, is_estimate a boolean slot, all held in one long array per row.
+// Everything else (names, notes, timestamps) gets a reference slot, and text that repeats across rows is shared
+// through the StringDictionary.
+// Attributes are also split into a hot group, loaded with the graph and kept resident, and a cold group of free text
+// and timestamps that is only needed to render or save a record and is fetched on demand.
+public class AttributeSchema implements Serializable {
+    private static final long serialVersionUID = 1L;
+    // bitmaps of present attributes are a single long
+    private static final int MAX_SLOTS = 64;
+    private static final Map<String,AttributeSchema> schemas = new ConcurrentHashMap<>();
+
+    static final byte INT = 0;
+    static final byte DOUBLE = 1;
+    static final byte BOOLEAN = 2;
+    static final byte REF = 3;
+
+    final String[] names;
+    final byte[] kinds;
+    // index of each slot in the row's primitive or reference array
+    final int[] positions;
+    final int numPrimitives;
+    final int numRefs;
+    final long allSlots;
+    final long internedSlots;
+    final long coldSlots;
+    final long hotSlots;
+    private final List<String> hotAttributes = new ArrayList<>();
+    private final List<String> coldAttributes = new ArrayList<>();
+    private final Map<String,Integer> slots = new HashMap<>();
+
+    private AttributeSchema(String tableName, List<String> attributes) {
+        List<String> distinct = new ArrayList<>(new LinkedHashSet<>(attributes));
+        int size = Math.min(distinct.size(), MAX_SLOTS);
+        this.names = new String[size];
+        this.kinds = new byte[size];
+        this.positions = new int[size];
+        int primitives = 0;
+        int refs = 0;
+        long cold = 0L;
+        long interned = 0L;
+        for(int i = 0; i < size; i++) {
+            String name = distinct.get(i);
+            names[i] = name;
+            kinds[i] = kindFor(name);
+            positions[i] = kinds[i]==REF ? refs++ : primitives++;
+            slots.put(name, i);
+            if(isRepeatedText(tableName, name)) {
+                interned |= 1L << i;
+            }
+            if(isCold(name)) {
+                cold |= 1L << i;
+                coldAttributes.add(name);
+            } else {
+                hotAttributes.add(name);
+            }
+        }
+        this.numPrimitives = primitives;
+        this.numRefs = refs;
+        this.allSlots = size == 64 ? -1L : (1L << size) - 1;
+        this.internedSlots = interned;
+        this.coldSlots = cold;
+        this.hotSlots = allSlots & ~cold;
+    }
+
+    private static boolean isCold(String attr) {
+        return attr.equals(Constants.NOTES) || attr.equals(Constants.SOURCE) || attr.equals(Constants.CREATED_AT) || attr.equals(Constants.UPDATED_AT);
+    }
+
+    // analyst imports give every row of a sheet the same source and notes, and region names repeat per revenue
+    private static boolean isRepeatedText(String tableName, String attr) {
+        return attr.equals(Constants.NOTES) || attr.equals(Constants.SOURCE) || (tableName.equals(Constants.REGION_TABLE) && attr.equals(Constants.NAME));
+    }
+
+    private static byte kindFor(String attr) {
+        if(attr.endsWith("_id") || attr.equals(Constants.YEAR) || attr.equals(Constants.ESTIMATE_TYPE)) {
+            return INT;
+        }
+        if(attr.equals(Constants.VALUE) || attr.equals(Constants.CAGR)) {
+            return DOUBLE;
+        }
+        if(attr.equals(Constants.IS_ESTIMATE)) {
+            return BOOLEAN;
+        }
+        return REF;
+    }
+
+    public static AttributeSchema forTable(@NonNull String tableName, @NonNull List<String> attributes) {
+        return schemas.computeIfAbsent(tableName, table -> new AttributeSchema(table, attributes));
+    }
+
+    public List<String> getHotAttributes() {
+        return Collections.unmodifiableList(hotAttributes);
+    }
+
+    public List<String> getColdAttributes() {
+        return Collections.unmodifiableList(coldAttributes);
+    }
+
+    // -1 for attributes outside of the schema
+    int slot(Object name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    int size() {
+        return names.length;
+    }
+}
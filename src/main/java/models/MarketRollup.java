@@ -0,0 +1,141 @@
+package models;
+
+import database.Database;
+import lombok.Getter;
+import lombok.NonNull;
+
+import java.util.*;
+import java.util.function.Function;
+
+// revenue of market subtrees computed from a single recursive query instead of walking the graph.
+// The fold follows Model.calculateRevenue for markets: a market's own revenues win, otherwise the larger of
+// its sub markets and its market shares is used.
+public class MarketRollup {
+    public enum Engine {
+        java,
+        sql,
+        compare
+    }
+    private static final Engine defaultEngine = Engine.valueOf(System.getProperty("report.engine", Engine.java.toString()));
+
+    @Getter
+    private final int id;
+    @Getter
+    private final Integer parentId;
+    @Getter
+    private final String name;
+    @Getter
+    private final int depth;
+    @Getter
+    private final List<MarketRollup> subMarkets = new ArrayList<>();
+    private boolean hasMarketShares;
+    private int numRevenues;
+    private double revenueTotal;
+    private double marketShareTotal;
+    @Getter
+    private double revenue;
+    private MarketRollup(int id, Integer parentId, String name, int depth) {
+        this.id=id;
+        this.parentId=parentId;
+        this.name=name;
+        this.depth=depth;
+    }
+
+    public static Engine engineFor(String engine) {
+        if(engine==null || engine.trim().isEmpty()) return defaultEngine;
+        try {
+            return Engine.valueOf(engine.trim().toLowerCase());
+        } catch(Exception e) {
+            throw new RuntimeException("Unknown report engine: "+engine);
+        }
+    }
+
+    // cagr estimates and missing revenue errors need the revenue models themselves
+    public static boolean isSupported(boolean useCAGR, @NonNull Constants.MissingRevenueOption option) {
+        return !useCAGR && !option.equals(Constants.MissingRevenueOption.error);
+    }
+
+    // every market of the subtree below rootMarketId (or below each global market when null), parents before children
+    public static List<MarketRollup> load(Integer rootMarketId, @NonNull Model.RevenueDomain revenueDomain, Integer regionId, int startYear, int endYear, Double discountRate, Integer companyId) {
+        if(revenueDomain.equals(Model.RevenueDomain.global)) {
+            if(regionId!=null) throw new RuntimeException("Cannot specify a region when calculating revenues globally.");
+        } else if(regionId==null) {
+            throw new RuntimeException(revenueDomain.equals(Model.RevenueDomain.regional) ? "Please specify a region." : "Please specify a country.");
+        }
+        List<Map<String,Object>> rows;
+        try {
+            rows = Database.selectMarketSubtreeRevenues(rootMarketId, revenueDomain, regionId, startYear, endYear, discountRate==null ? 0d : discountRate, companyId);
+        } catch(Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Error calculating market revenues: "+e.getMessage());
+        }
+        Map<Integer,MarketRollup> markets = new LinkedHashMap<>();
+        for(Map<String,Object> row : rows) {
+            int id = (Integer) row.get(Constants.MARKET_ID);
+            MarketRollup market = markets.get(id);
+            if(market==null) {
+                market = new MarketRollup(id, (Integer) row.get(Constants.PARENT_MARKET_ID), (String) row.get(Constants.NAME), (Integer) row.get("depth"));
+                market.hasMarketShares = (Boolean) row.get("has_market_shares");
+                markets.put(id, market);
+                MarketRollup parent = market.parentId == null ? null : markets.get(market.parentId);
+                if(parent!=null) {
+                    parent.subMarkets.add(market);
+                }
+            }
+            String kind = (String) row.get("kind");
+            if("market_revenue".equals(kind)) {
+                market.numRevenues += (Integer) row.get("count");
+                market.revenueTotal += (Double) row.get(Constants.VALUE);
+            } else if("market_share".equals(kind)) {
+                market.marketShareTotal += (Double) row.get(Constants.VALUE);
+            }
+        }
+        List<MarketRollup> results = new ArrayList<>(markets.values());
+        // rows come ordered by depth, so walking backwards folds every sub market before its parent
+        for(int i = results.size()-1; i >= 0; i--) {
+            results.get(i).fold();
+        }
+        return results;
+    }
+
+    private void fold() {
+        if(numRevenues > 0) {
+            revenue = revenueTotal;
+        } else if(!subMarkets.isEmpty()) {
+            double totalOfLevel = subMarkets.stream().mapToDouble(MarketRollup::getRevenue).sum();
+            revenue = hasMarketShares ? Math.max(totalOfLevel, marketShareTotal) : totalOfLevel;
+        } else if(hasMarketShares) {
+            revenue = marketShareTotal;
+        } else {
+            revenue = 0d;
+        }
+    }
+
+    public Model toModel() {
+        Map<String,Object> data = new HashMap<>();
+        data.put(Constants.NAME, name);
+        data.put(Constants.PARENT_MARKET_ID, parentId);
+        return new Market(id, data);
+    }
+
+    // markets where the java engine disagrees, calculated with the given function. A null from the function means the
+    // java engine has no such market (e.g. created after the graph loaded) and counts as a mismatch
+    public static List<String> compare(@NonNull Collection<MarketRollup> markets, @NonNull Function<MarketRollup,Double> javaRevenue) {
+        List<String> mismatches = new ArrayList<>();
+        for(MarketRollup market : markets) {
+            Double expected = javaRevenue.apply(market);
+            if(expected==null) {
+                mismatches.add(market.name+" ("+market.id+"): java=missing sql="+market.revenue);
+                continue;
+            }
+            if(Math.abs(expected - market.revenue) > 1e-6 * Math.max(1d, Math.abs(expected))) {
+                mismatches.add(market.name+" ("+market.id+"): java="+expected+" sql="+market.revenue);
+            }
+        }
+        if(!mismatches.isEmpty()) {
+            System.out.println("Report engines disagree on "+mismatches.size()+" of "+markets.size()+" markets:");
+            mismatches.forEach(mismatch -> System.out.println("  "+mismatch));
+        }
+        return mismatches;
+    }
+}
@@ -7,7 +7,8 @@ import com.googlecode.wickedcharts.highcharts.options.series.Point;
 import com.googlecode.wickedcharts.highcharts.options.series.PointSeries;
 import com.googlecode.wickedcharts.highcharts.options.series.Series;
 import database.Database;
-import graph.Edge;
+import database.RevenueRollups;
+import database.UnitOfWork;
 import graph.Graph;
 import graph.Node;
 import j2html.tags.ContainerTag;
@@ -47,10 +48,15 @@ public abstract class Model implements Serializable {
     protected Map<String,Object> data;
     @Getter
     protected transient final List<String> availableAttributes;
+    private transient final AttributeSchema attributeSchema;
     @Getter
     protected transient List<Association> associationsMeta;
-    @Getter @Setter
+    @Getter
     protected transient Map<Association,List<Model>> associations;
+    // number of associated models when the associations were set, for the node cache's estimates, which must not
+    // iterate the map while another thread fills or purges it
+    @Getter
+    private transient volatile int numLoadedAssociations;
     @Getter
     protected String template;
     @Getter
@@ -62,11 +68,13 @@ public abstract class Model implements Serializable {
     protected transient List<CalculationInformation> calculationInformation;
     protected Model(@NonNull List<Association> associationsMeta, @NonNull List<String> availableAttributes, @NonNull String tableName, Integer id, Map<String,Object> data, boolean isRevenueModel) {
         this.tableName = tableName;
-        this.data = data;
         this.associationsMeta = associationsMeta;
         this.id = id;
         this.isRevenueModel = isRevenueModel;
         this.availableAttributes=availableAttributes;
+        this.attributeSchema = AttributeSchema.forTable(tableName, availableAttributes);
+        // rows of existing records are stored compactly, data for new records stays the caller's own map
+        this.data = id == null ? data : compact(data);
         if(id != null && data == null) {
             // pull data from database
             loadAttributesFromDatabase();
@@ -745,6 +753,7 @@ public abstract class Model implements Serializable {
             Integer year = null;
             if(isRevenueToRevenue) {
                 loadAttributesFromDatabase();
+                loadColdAttributes();
                 for(String k : data.keySet()) {
                     if(k.equals(Constants.REGION_ID)) {
                         continue;
@@ -769,6 +778,7 @@ public abstract class Model implements Serializable {
                     Model bestChoice = otherYears.stream().peek(Model::loadAttributesFromDatabase)
                             .min((e1,e2)->Integer.compare((Integer)e2.getData().get(Constants.YEAR), (Integer)e1.getData().get(Constants.YEAR)))
                             .get();
+                    bestChoice.loadColdAttributes();
                     year = (Integer) bestChoice.data.get(Constants.YEAR) + 1;
                     for (String k : bestChoice.data.keySet()) {
                         Object v = bestChoice.data.get(k);
@@ -923,7 +933,7 @@ public abstract class Model implements Serializable {
         }
     }
 
-    public ContainerTag loadNestedAssociations(boolean nested, int maxDepth, boolean expandAll, Set<Node> alwaysExpandNodes, Integer withinGroupId, Integer marketDepth) {
+    public ContainerTag loadNestedAssociations(boolean nested, int maxDepth, boolean expandAll, Set<Long> alwaysExpandNodes, Integer withinGroupId, Integer marketDepth) {
         RevenueDomain revenueDomain = RevenueDomain.global;
         if(data==null) {
             loadAttributesFromDatabase();
@@ -943,12 +953,39 @@ public abstract class Model implements Serializable {
                         br(),inner
                 )
         );
+        prefetchNestedAssociations(maxDepth, expandAll, withinGroupId != null);
         Set<String> allReferences = new HashSet<>(Collections.singleton(this.getClass().getSimpleName()+id));
         loadNestedAssociationHelper(getRegionDomainName(revenueDomain, null),true, revenueDomain, null, null, null, false, false, Constants.MissingRevenueOption.replace, null, inner, new HashSet<>(allReferences), allReferences, new AtomicInteger(0), this, 0, maxDepth, expandAll, alwaysExpandNodes, withinGroupId, marketDepth);
         if(nested) return inner;
         return tag;
     };
 
+    // walks the tree level by level so each level costs one query per table rather than one per record
+    private void prefetchNestedAssociations(int maxDepth, boolean expandAll, boolean withinGroup) {
+        Set<Node> seen = new HashSet<>();
+        List<Model> level = Collections.singletonList(this);
+        seen.add(new Node(this));
+        for(int depth = 0; depth <= maxDepth && level.size() > 0; depth++) {
+            List<Model> nextLevel = new ArrayList<>();
+            for(Model model : level) {
+                if(model.nodeCache==null) continue;
+                Node node = model.nodeCache.findNode(Association.Model.valueOf(model.getClass().getSimpleName()), model.getId());
+                if(node==null) continue;
+                for(Association association : model.associationsMeta) {
+                    if(!expandAll && association.shouldNotExpand(model.isRevenueModel())) continue;
+                    if(withinGroup && depth == 0 && !association.getModel().equals(Association.Model.MarketShareRevenue)) continue;
+                    for(Node target : model.nodeCache.getRelatives(node, association.getAssociationName())) {
+                        if(seen.add(target)) {
+                            nextLevel.add(target.getModel());
+                        }
+                    }
+                }
+            }
+            loadAttributesFromDatabase(nextLevel);
+            level = nextLevel;
+        }
+    }
+
     private static String getRegionDomainName(RevenueDomain domain, Integer regionId) {
         String name;
         switch(domain) {
@@ -988,6 +1025,7 @@ public abstract class Model implements Serializable {
                         br(),inner
                 )
         );
+        prefetchNestedAssociations(maxDepth, false, false);
         Set<String> allReferences = new HashSet<>(Collections.singleton(this.getClass().getSimpleName()+id));
         loadNestedAssociationHelper(getRegionDomainName(revenueDomain, regionId),false, revenueDomain, regionId, startYear, endYear, useCAGR, estimateCagr, option, discountRate, inner, new HashSet<>(allReferences), allReferences, new AtomicInteger(0), this, 0, maxDepth, false, Collections.emptySet(), null, marketDepth);
         return tag;
@@ -1114,8 +1152,8 @@ public abstract class Model implements Serializable {
             // check for parent region id
             Node region = Graph.load().findNode(Association.Model.Region, regionId);
             // get child ids
-            Set<Integer> childRegions = region.getEdgeMap().getOrDefault("Sub Region", Collections.emptyList())
-                    .stream().map(e->e.getTarget().getModel().getId()).collect(Collectors.toSet());
+            Set<Integer> childRegions = Graph.load().getRelatives(region, "Sub Region")
+                    .stream().map(n->n.getModel().getId()).collect(Collectors.toSet());
             subRevenue = Stream.of(this).filter(m->childRegions.contains((Integer)m.getData().get(Constants.REGION_ID))).findAny().orElse(null);
         }
         if(subRevenue!=null) {
@@ -1354,10 +1392,9 @@ public abstract class Model implements Serializable {
          If no revenue is present for a company, do nothing. If no revenue is present for a product, do nothing.
          Eventually, we can calculate revenues of markets for other years using the defined CAGR of a recent period.
      */
-    private void loadNestedAssociationHelper(@NonNull String regionDomainName, boolean allowEdit, RevenueDomain revenueDomain, Integer regionId, Integer startYear, Integer endYear, boolean useCAGR, boolean estimateCagr, Constants.MissingRevenueOption option, Double discountRate, ContainerTag container, Set<String> alreadySeen, Set<String> references, AtomicInteger cnt, Model original, int depth, int maxDepth, boolean expandAll, Set<Node> alwaysExpandNodes, Integer withinGroupId, Integer marketDepth) {
-        if(depth > maxDepth && !alwaysExpandNodes.contains(new Node(this))) return;
+    private void loadNestedAssociationHelper(@NonNull String regionDomainName, boolean allowEdit, RevenueDomain revenueDomain, Integer regionId, Integer startYear, Integer endYear, boolean useCAGR, boolean estimateCagr, Constants.MissingRevenueOption option, Double discountRate, ContainerTag container, Set<String> alreadySeen, Set<String> references, AtomicInteger cnt, Model original, int depth, int maxDepth, boolean expandAll, Set<Long> alwaysExpandNodes, Integer withinGroupId, Integer marketDepth) {
+        if(depth > maxDepth && !alwaysExpandNodes.contains(getNodeKey())) return;
         final boolean withinGroup = withinGroupId != null;
-        System.out.println("Load nested... "+this.getClass().getSimpleName()+id);
         String originalId = original.getClass().getSimpleName()+original.getId();
         Map<Association,List<Model>> modelMap = new HashMap<>();
         Set<Association> linkToAssociations = new HashSet<>();
@@ -1367,7 +1404,7 @@ public abstract class Model implements Serializable {
             }
             if(withinGroup && !association.getModel().equals(Association.Model.MarketShareRevenue)) continue;
 
-            if(depth >= maxDepth && !alwaysExpandNodes.contains(new Node(this))) {
+            if(depth >= maxDepth && !alwaysExpandNodes.contains(getNodeKey())) {
                 linkToAssociations.add(association);
             }
 
@@ -1522,7 +1559,7 @@ public abstract class Model implements Serializable {
                                 Model assoc = node.getModel();
                                 assoc.loadAttributesFromDatabase();
                                 groupLink = assoc.getSimpleLink();
-                                if (allowEdit && !alwaysExpandNodes.contains(node)) {
+                                if (allowEdit && !alwaysExpandNodes.contains(node.getKey())) {
                                     expandLink = assoc.getExpandLink().attr("data-group", getId().toString());
                                 }
                             } else {
@@ -1609,7 +1646,7 @@ public abstract class Model implements Serializable {
                         }
                         if (!(model instanceof ProjectedRevenue) && !sameModel && !alreadySeen.contains(_id) && !model.getType().equals(Association.Model.Region)) {
                             alreadySeen.add(_id);
-                            if (linkToAssociations.contains(association) || (depth >= maxDepth && !alwaysExpandNodes.contains(new Node(model)))) {
+                            if (linkToAssociations.contains(association) || (depth >= maxDepth && !alwaysExpandNodes.contains(model.getNodeKey()))) {
                                 // just show link
                                 inner.attr("style", "display: inline;").with(
                                         model.getExpandLink()
@@ -1659,7 +1696,8 @@ public abstract class Model implements Serializable {
                         // need to set parent id of current model
                         updateAttribute(association.getParentIdField(), null);
                         updateInDatabase();
-                        nodeCache.unlinkNodeFromAssociation(getType(), id, association);
+                        final Graph graph = nodeCache;
+                        UnitOfWork.afterCommit(() -> graph.unlinkNodeFromAssociation(getType(), id, association));
                         break;
                     }
                 }
@@ -1681,13 +1719,19 @@ public abstract class Model implements Serializable {
 
     // UPDATE NODE CACHE
     public void associateWith(@NonNull Model otherModel,@NonNull String associationName, @NonNull Map<String,Object> joinData) {
+        if(UnitOfWork.current()==null) {
+            UnitOfWork.run(() -> associateWith(otherModel, associationName, joinData));
+            return;
+        }
         // find association
         for(Association association : associationsMeta) {
             if(association.getAssociationName().equals(associationName)) {
                 // make sure we haven't introduced in cycles
                 if(association.getModel().toString().equals(this.getClass().getSimpleName())) {
                     System.out.println("Checking for cycles...");
-                    if(nodeCache.areAlreadyConnected(getType(), id, otherModel.getType(), otherModel.getId())) {
+                    // a many to one edge of this node is replaced by the new one, so it can't be part of a cycle
+                    String replacedAssociation = association.getType().equals(Association.Type.ManyToOne) ? associationName : null;
+                    if(nodeCache.areAlreadyConnected(getType(), id, otherModel.getType(), otherModel.getId(), replacedAssociation)) {
                         throw new RuntimeException("Unable to assign association. Cycle detected.");
                     }
                 }
@@ -1723,7 +1767,7 @@ public abstract class Model implements Serializable {
                         /*
                         try {
                             // need to add to join table
-                            Connection conn = Database.getConn();
+                            Connection conn = Database.getConnection();
                             PreparedStatement ps = null;
                             String valueStr = "?,?";
                             String fieldStr = association.getParentIdField()+","+association.getChildIdField();
@@ -1751,11 +1795,14 @@ public abstract class Model implements Serializable {
                         break;
                     }
                 }
-                nodeCache.linkNodeWithAssociation(this, otherModel, association);
-                otherModel.associations=null;
-                otherModel.loadAssociations();
-                associations = null;
-                loadAssociations();
+                final Graph graph = nodeCache;
+                UnitOfWork.afterCommit(() -> {
+                    graph.linkNodeWithAssociation(this, otherModel, association);
+                    otherModel.setAssociations(null);
+                    otherModel.loadAssociations();
+                    setAssociations(null);
+                    loadAssociations();
+                });
                 break;
             }
         }
@@ -1848,6 +1895,7 @@ public abstract class Model implements Serializable {
         } else {
             backButton = span();
         }
+        loadColdAttributes();
         if(associations==null) loadAssociations();
         boolean isRegion = isRegion();
         ContainerTag html = div().withClass("col-12").with(
@@ -1968,17 +2016,16 @@ public abstract class Model implements Serializable {
         if (data == null || isMissingAttributes()) {
             loadAttributesFromDatabase();
         }
-        this.associations = new HashMap<>();
+        Map<Association,List<Model>> associations = new HashMap<>();
         if(nodeCache!=null) {
             Node node = nodeCache.findNode(Association.Model.valueOf(getClass().getSimpleName()), id);
+            List<Model> allAssocs = new ArrayList<>();
             for (Association association : associationsMeta) {
-                List<Edge> edges = node.getEdgeMap().get(association.getAssociationName());
-                if(edges!=null && edges.size()>0) {
-                    List<Model> assocs = edges.stream().map(edge->edge.getTarget().getModel())
+                List<Node> relatives = nodeCache.getRelatives(node, association.getAssociationName());
+                if(relatives.size()>0) {
+                    List<Model> assocs = relatives.stream().map(Node::getModel)
                             .collect(Collectors.toList());
-                    for(Model assoc : assocs) {
-                        assoc.loadAttributesFromDatabase();
-                    }
+                    allAssocs.addAll(assocs);
                     if (association.getType().equals(Association.Type.OneToMany)) {
                         associations.put(association, assocs);
                     } else if (association.getType().equals(Association.Type.ManyToOne)) {
@@ -1990,6 +2037,9 @@ public abstract class Model implements Serializable {
                     }
                 }
             }
+            // one query per associated table instead of one per associated record
+            loadAttributesFromDatabase(allAssocs);
+            setAssociations(associations);
         } else {
             throw new RuntimeException("Cannot load associations without node cache!");
             /*
@@ -2017,13 +2067,59 @@ public abstract class Model implements Serializable {
         }
     }
 
+    // true when any hot attribute (see AttributeSchema) has not been loaded, the cold ones are checked separately
     public boolean isMissingAttributes () {
+        return isMissing(false);
+    }
+
+    public boolean isMissingColdAttributes() {
+        return isMissing(true);
+    }
+
+    private boolean isMissing(boolean cold) {
+        Map<String,Object> data = this.data;
         if(data==null) return true;
-        Set<String> missing = new HashSet<>(getAvailableAttributes());
-        missing.removeAll(getData().keySet());
-        return missing.size()>0;
+        if(data instanceof AttributeMap) {
+            return cold ? !((AttributeMap) data).hasColdSlots() : !((AttributeMap) data).hasHotSlots();
+        }
+        for(String attr : cold ? attributeSchema.getColdAttributes() : attributeSchema.getHotAttributes()) {
+            if(!data.containsKey(attr)) return true;
+        }
+        return false;
+    }
+
+    public List<String> getHotAttributes() {
+        return attributeSchema.getHotAttributes();
     }
 
+    public List<String> getColdAttributes() {
+        return attributeSchema.getColdAttributes();
+    }
+
+    private Map<String,Object> compact(Map<String,Object> data) {
+        if(data==null || data instanceof AttributeMap) return data;
+        return new AttributeMap(attributeSchema, data);
+    }
+
+    // adds a freshly selected row to the loaded attributes. Values already loaded are kept unless overwrite is set,
+    // so loading one group never undoes unsaved changes to the other. A schema attribute only in the overflow map
+    // (a value its slot could not hold) does not count as loaded, otherwise isMissingAttributes would never clear.
+    private synchronized void mergeAttributes(Map<String,Object> row, boolean overwrite) {
+        if(data==null) {
+            data = new AttributeMap(attributeSchema, row);
+        } else if(data instanceof AttributeMap) {
+            // merged into a copy and swapped in, for readers without the lock
+            AttributeMap merged = new AttributeMap(attributeSchema, data);
+            row.forEach((k, v) -> {
+                if(overwrite || !merged.isLoaded(k)) merged.put(k, v);
+            });
+            data = merged;
+        } else {
+            row.forEach((k, v) -> {
+                if(overwrite || !data.containsKey(k)) data.put(k, v);
+            });
+        }
+    }
 
     public void loadAttributesFromDatabase(boolean force) {
         if(!existsInDatabase()) {
@@ -2031,8 +2127,7 @@ public abstract class Model implements Serializable {
         }
         if(!isMissingAttributes() && !force) return;
         try {
-            System.out.println("Select "+getType()+" - "+id);
-            this.data = Database.select(tableName, id, availableAttributes);
+            mergeAttributes(Database.select(tableName, id, getHotAttributes()), force);
         } catch(Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Error loading attributes from database: " + e.getMessage());
@@ -2043,19 +2138,67 @@ public abstract class Model implements Serializable {
         loadAttributesFromDatabase(false);
     }
 
+    // notes, sources and timestamps, only needed to render or save the record
+    public void loadColdAttributes() {
+        loadColdAttributes(Collections.singletonList(this));
+    }
+
+    public static void loadAttributesFromDatabase(@NonNull Collection<Model> models) {
+        loadAttributeGroup(models, false);
+    }
+
+    public static void loadColdAttributes(@NonNull Collection<Model> models) {
+        loadAttributeGroup(models, true);
+    }
+
+    private static void loadAttributeGroup(Collection<Model> models, boolean cold) {
+        Map<String,List<Model>> missingByTable = new HashMap<>();
+        for(Model model : models) {
+            if(model.existsInDatabase() && model.isMissing(cold)) {
+                missingByTable.computeIfAbsent(model.getTableName(), table -> new ArrayList<>()).add(model);
+            }
+        }
+        missingByTable.forEach((table, missing) -> {
+            List<String> attributes = cold ? missing.get(0).getColdAttributes() : missing.get(0).getHotAttributes();
+            if(attributes.isEmpty()) return;
+            Set<Integer> ids = missing.stream().map(Model::getId).collect(Collectors.toSet());
+            try {
+                Map<Integer,Map<String,Object>> rows = Database.selectMany(table, ids, attributes);
+                for(Model model : missing) {
+                    Map<String,Object> row = rows.get(model.getId());
+                    if(row!=null) {
+                        model.mergeAttributes(row, false);
+                    } else if(model.data==null) {
+                        model.data = new AttributeMap(model.attributeSchema);
+                    }
+                }
+            } catch(Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error loading attributes from database: " + e.getMessage());
+            }
+        });
+    }
+
     public void updateInDatabase() {
         if(nodeCache==null) throw new RuntimeException("Cannot update database without node cache...");
         // update database
         if(!existsInDatabase()) {
             throw new RuntimeException("Trying to update a record that does not exist in the database...");
         }
+        // every column is written back, so notes and sources that were never loaded must not be saved as null
+        loadColdAttributes();
         validateState();
         try {
             Map<String,Object> dataCopy = new HashMap<>(data);
             List<String> keys = new ArrayList<>(availableAttributes);
             keys.remove(Constants.UPDATED_AT);
             keys.remove(Constants.CREATED_AT);
+            // the row may move to another market or company, so the rollup keys it had before are refreshed too
+            Set<List<Integer>> rollupKeys = isRevenueModel ? RevenueRollups.keysBeforeWrite(tableName, Collections.singleton(id)) : Collections.emptySet();
             Database.update(tableName, id, dataCopy, keys);
+            if(isRevenueModel) {
+                RevenueRollups.afterWrite(tableName, Collections.singleton(id), rollupKeys);
+            }
 
         } catch(Exception e) {
             e.printStackTrace();
@@ -2112,12 +2255,50 @@ public abstract class Model implements Serializable {
         try {
             id = Database.insert(tableName, data);
             nodeCache.addNode(getType(), id, new Node(this));
+            if(isRevenueModel) {
+                RevenueRollups.afterWrite(tableName, Collections.singleton(id), Collections.emptySet());
+            }
         } catch(Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Error inserting record into database: "+e.getMessage());
         }
     }
 
+    // save many new records at once, with one bulk insert per table
+    public static void createAllInDatabase(@NonNull List<? extends Model> models) {
+        Map<String,List<Model>> modelsByTable = new LinkedHashMap<>();
+        for(Model model : models) {
+            if(model instanceof ProjectedRevenue) {
+                throw new RuntimeException("Unable to create database record for projected revenues.");
+            }
+            if(model.existsInDatabase()) {
+                throw new RuntimeException("Trying to create a record that already exists in the database...");
+            }
+            model.validateState();
+            modelsByTable.computeIfAbsent(model.getTableName(), table -> new ArrayList<>()).add(model);
+        }
+        Graph graph = Graph.load();
+        modelsByTable.forEach((table, tableModels) -> {
+            try {
+                List<Integer> ids = Database.insertAll(table, tableModels.stream().map(Model::getData).collect(Collectors.toList()));
+                for(int i = 0; i < tableModels.size(); i++) {
+                    Model model = tableModels.get(i);
+                    model.id = ids.get(i);
+                    if(model.nodeCache==null) {
+                        model.nodeCache = graph;
+                    }
+                    model.nodeCache.addNode(model.getType(), model.id, new Node(model));
+                }
+                if(tableModels.get(0).isRevenueModel) {
+                    RevenueRollups.afterWrite(table, ids, Collections.emptySet());
+                }
+            } catch(Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error inserting records into database: "+e.getMessage());
+            }
+        });
+    }
+
     private void validateDelete() {
         // this method throws an exception if the node cannot be deleted.
         // cannot delete a market that has submarkets or a revenue that has sub revenues
@@ -2134,34 +2315,50 @@ public abstract class Model implements Serializable {
 
     // delete record from the database
     public synchronized void deleteFromDatabase(boolean cascade, boolean checkParentIds) {
+        UnitOfWork unitOfWork = UnitOfWork.current();
+        if(unitOfWork==null) {
+            // the whole cascade is written in one transaction
+            UnitOfWork.run(() -> deleteFromDatabase(cascade, checkParentIds));
+            return;
+        }
         if(nodeCache==null) {
             nodeCache = Graph.load();
         }
-        if(!existsInDatabase()) {
+        if(unitOfWork.isDeleted(tableName, id) || !existsInDatabase()) {
             throw new RuntimeException("Trying to delete a record that does not exist in the database...");
         }
         loadAssociations();
         validateDelete();
-        for(Map.Entry<Association,List<Model>> entry : associations.entrySet()) {
-            for(Model association : entry.getValue()) {
-                if (cascade && entry.getKey().isDependent()) {
-                    association.deleteFromDatabase(true, checkParentIds);
-                }
-                if(checkParentIds) {
-                    try {
-                        cleanUpParentIds(entry.getKey(), association.getId());
-                    } catch (Exception e) {
-                        e.printStackTrace();
+        unitOfWork.beginCascade();
+        try {
+            for (Map.Entry<Association, List<Model>> entry : associations.entrySet()) {
+                for (Model association : entry.getValue()) {
+                    if (cascade && entry.getKey().isDependent()) {
+                        association.deleteFromDatabase(true, checkParentIds);
+                    }
+                    if (checkParentIds) {
+                        try {
+                            cleanUpParentIds(entry.getKey(), association.getId());
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        }
                     }
                 }
             }
-        }
-        try {
-            Database.delete(tableName, id);
-            nodeCache.deleteNode(getType(), id);
-        } catch(Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException("Error deleting record from database: "+e.getMessage());
+            try {
+                Set<List<Integer>> rollupKeys = isRevenueModel ? RevenueRollups.keysBeforeWrite(tableName, Collections.singleton(id)) : Collections.emptySet();
+                Database.delete(tableName, id);
+                if(isRevenueModel) {
+                    RevenueRollups.afterWrite(tableName, Collections.singleton(id), rollupKeys);
+                }
+                final Graph graph = nodeCache;
+                UnitOfWork.afterCommit(() -> graph.deleteNode(getType(), id));
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("Error deleting record from database: " + e.getMessage());
+            }
+        } finally {
+            unitOfWork.endCascade();
         }
     }
 
@@ -2169,20 +2366,28 @@ public abstract class Model implements Serializable {
         return Association.Model.valueOf(this.getClass().getSimpleName());
     }
 
+    public long getNodeKey() {
+        return Node.keyFor(getType(), id==null ? -1 : id);
+    }
+
     public synchronized void purgeMemory() {
+        // hot attributes stay, the graph and its rollups read them
         if(data!=null) {
-            for(String attr : getAvailableAttributes()) {
-                if(!attr.endsWith("_id") && Arrays.asList(Constants.YEAR, Constants.VALUE, Constants.CAGR).contains(attr)) {
-                    data.remove(attr);
-                }
+            for(String attr : getColdAttributes()) {
+                data.remove(attr);
             }
         }
         if(associations!=null) {
             associations.clear();
-            associations = null;
+            setAssociations(null);
         }
     }
 
+    public void setAssociations(Map<Association,List<Model>> associations) {
+        this.associations = associations;
+        this.numLoadedAssociations = associations==null ? 0 : associations.values().stream().mapToInt(list -> list==null ? 0 : list.size()).sum();
+    }
+
     public void cleanUpParentIds(@NonNull Association association, int assocId) {
         // clean up join table if necessary
         if(nodeCache==null) {
@@ -2218,8 +2423,11 @@ public abstract class Model implements Serializable {
                     Database.nullifyFieldName(association.getChildTableName(), association.getParentIdField(), idToUse);
                     Node node = nodeCache.findNode(typeToUse, idToUse);
                     if(node!=null) {
-                        node.getModel().getData().put(association.getParentIdField(), null);
-                        nodeCache.unlinkNodeFromAssociation(node, association);
+                        final Graph graph = nodeCache;
+                        UnitOfWork.afterCommit(() -> {
+                            node.getModel().getData().put(association.getParentIdField(), null);
+                            graph.unlinkNodeFromAssociation(node, association);
+                        });
                     }
                 }
             } catch (Exception e) {
@@ -0,0 +1,53 @@
+package models;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// shared copies of text that repeats across rows (sources, notes, region names), so an AttributeMap holds a reference
+// to the one instance instead of its own copy from the driver. Entries are never removed, the dictionary stops
+// admitting strings once it holds -Dgraph.string_dictionary_size of them (64k by default) and strings over MAX_LENGTH
+// are never admitted, in both cases the caller keeps its own copy.
+public class StringDictionary {
+    private static final int capacity = Integer.getInteger("graph.string_dictionary_size", 64 * 1024);
+    // long free text is rarely repeated
+    private static final int MAX_LENGTH = 2048;
+
+    private static final Map<String,String> strings = new ConcurrentHashMap<>();
+    private static final LongAdder chars = new LongAdder();
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
+
+    private StringDictionary() {}
+
+    static String intern(String value) {
+        String shared = strings.get(value);
+        if(shared!=null) {
+            hits.increment();
+            return shared;
+        }
+        // the size check races with other adds, so the bound can be passed by a few strings
+        if(value.length() > MAX_LENGTH || strings.size() >= capacity) {
+            rejected.increment();
+            return value;
+        }
+        shared = strings.putIfAbsent(value, value);
+        if(shared!=null) {
+            hits.increment();
+            return shared;
+        }
+        chars.add(value.length());
+        return value;
+    }
+
+    public static Map<String,Object> getStats() {
+        Map<String,Object> stats = new LinkedHashMap<>();
+        stats.put("capacity", capacity);
+        stats.put("strings", strings.size());
+        stats.put("chars", chars.sum());
+        stats.put("hits", hits.sum());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,89 @@
+package models;
+
+import graph.Graph;
+
+import java.util.*;
+
+// run against a seeded database (seed.SeedTestData) to compare the heap held by the repeated text of every row, once
+// as the separate copies the driver returns and once shared through the StringDictionary.
+// With "--synthetic <rows>" the rows are made up in memory instead, for when no database is at hand: a source, and
+// for most rows a note, drawn from the small pools an analyst sheet import produces, and a country name per row.
+public class StringDictionaryFootprint {
+    private static final List<String> REPEATED = Arrays.asList(Constants.NOTES, Constants.SOURCE, Constants.NAME);
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // a few rounds, the collector does not always finish in one
+        for(int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch(InterruptedException e) {
+                break;
+            }
+            used = Math.min(used, runtime.totalMemory()-runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static String megabytes(long bytes) {
+        return String.format("%.1f MB", bytes / (1024d * 1024d));
+    }
+
+    private static List<String> syntheticValues(int rows) {
+        Random random = new Random(24);
+        List<String> values = new ArrayList<>(rows * 3);
+        for(int i = 0; i < rows; i++) {
+            values.add(random.nextInt(4)==0 ? "The Intelligent Designer" : "Annual report "+(2000+random.nextInt(20))+", company filings section "+random.nextInt(25));
+            if(random.nextInt(10) < 7) {
+                values.add("Estimated from the segment totals and regional split given by analyst sheet "+random.nextInt(200));
+            }
+            values.add("Country "+random.nextInt(250));
+        }
+        return values;
+    }
+
+    private static List<String> databaseValues(List<Model> models) {
+        Graph graph = Graph.load();
+        for(Association.Model type : Association.Model.values()) {
+            models.addAll(graph.getModelList(type));
+        }
+        Model.loadColdAttributes(models);
+        List<String> values = new ArrayList<>();
+        for(Model model : models) {
+            for(String attr : REPEATED) {
+                Object value = model.getData()==null ? null : model.getData().get(attr);
+                if(value instanceof String && (!attr.equals(Constants.NAME) || model.isRegion())) {
+                    values.add((String) value);
+                }
+            }
+        }
+        return values;
+    }
+
+    public static void main(String[] args) {
+        boolean synthetic = args.length > 1 && args[0].equals("--synthetic");
+        List<Model> models = new ArrayList<>();
+        List<String> values = synthetic ? syntheticValues(Integer.valueOf(args[1])) : databaseValues(models);
+        System.out.println("Measuring "+values.size()+" text values of "+(synthetic ? Integer.valueOf(args[1]) : models.size())+" rows...");
+
+        List<String> keep = new ArrayList<>(values.size());
+        long before = usedHeap();
+        // a fresh instance per row, like the driver returns
+        values.forEach(value -> keep.add(new String(value.toCharArray())));
+        long copiedBytes = usedHeap() - before;
+        keep.clear();
+
+        before = usedHeap();
+        values.forEach(value -> keep.add(StringDictionary.intern(new String(value.toCharArray()))));
+        long sharedBytes = usedHeap() - before;
+
+        Map<String,Object> stats = StringDictionary.getStats();
+        System.out.println("Copies per row:  "+megabytes(copiedBytes));
+        System.out.println("Shared strings:  "+megabytes(sharedBytes));
+        System.out.println("Dictionary:      "+stats.get("strings")+" strings, "+stats.get("chars")+" chars, "+stats.get("hits")+" hits, "+stats.get("rejected")+" rejected");
+        System.out.println("Kept "+keep.size()+" values.");
+        System.exit(0);
+    }
+}
@@ -125,6 +125,7 @@ public class Ingester {
             Elements headers = reportTable.get(0).children();
             Elements revenues = reportTable.get(1).children();
             List<Double> previousRevenues = new ArrayList<>();
+            List<Model> revenueModels = new ArrayList<>();
             for(int i = 0; i < headers.size(); i++) {
                 int year;
                 try {
@@ -179,8 +180,9 @@ public class Ingester {
                 } else {
                     revenueModel = new CompanyRevenue(null, revenueData);
                 }
-                revenueModel.createInDatabase();
+                revenueModels.add(revenueModel);
             }
+            Model.createAllInDatabase(revenueModels);
         }
     }
 }
@@ -10,6 +10,7 @@ import models.Model;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -89,7 +90,9 @@ public class IngestCompanyDataSheet {
                 latestIndustry.loadAssociations();
             }
             if(globalRevenueModel!=null) {
-                Map<Integer, Model> regionIdToParentModelMap = new HashMap<>();
+                // regional revenues first and then national revenues, one bulk insert each
+                List<Model> regionModels = new ArrayList<>();
+                List<Double> regionRevenues = new ArrayList<>();
                 for (int r = 6; r < row.length; r++) {
                     String revStr = row[r];
                     if (revStr.isEmpty()) break;
@@ -98,41 +101,53 @@ public class IngestCompanyDataSheet {
                     if(regionModel==null) {
                         throw new RuntimeException("Unable to find region: "+location);
                     }
-                    regionModel.loadAttributesFromDatabase();
-                    Model parentModel;
-                    if(regionModel.getData().get(Constants.PARENT_REGION_ID)==null) {
-                        // regional
-                        parentModel = globalRevenueModel;
-                    } else {
-                        // national
-                        parentModel = regionIdToParentModelMap.get((Integer)regionModel.getData().get(Constants.PARENT_REGION_ID));
-                        if(parentModel==null) {
-                            throw new RuntimeException("Could not find parent revenue for: "+ location);
+                    regionModels.add(regionModel);
+                    regionRevenues.add(Double.valueOf(revStr));
+                }
+                Model.loadAttributesFromDatabase(regionModels);
+                Map<Integer, Model> regionIdToParentModelMap = new HashMap<>();
+                for(boolean national : new boolean[]{false, true}) {
+                    List<Model> revenueModels = new ArrayList<>();
+                    List<Model> revenueRegions = new ArrayList<>();
+                    for(int r = 0; r < regionModels.size(); r++) {
+                        Model regionModel = regionModels.get(r);
+                        Integer parentRegionId = (Integer)regionModel.getData().get(Constants.PARENT_REGION_ID);
+                        if((parentRegionId != null) != national) continue;
+                        Model parentModel;
+                        if(parentRegionId==null) {
+                            // regional
+                            parentModel = globalRevenueModel;
+                        } else {
+                            // national
+                            parentModel = regionIdToParentModelMap.get(parentRegionId);
+                            if(parentModel==null) {
+                                throw new RuntimeException("Could not find parent revenue for: "+ regionModel.getName());
+                            }
                         }
+                        // add global market shares
+                        Map<String,Object> revenueData = new HashMap<>();
+                        if(!source.isEmpty()) {
+                            revenueData.put(Constants.SOURCE, source);
+                        }
+                        if(!notes.isEmpty()) {
+                            revenueData.put(Constants.NOTES, notes);
+                        }
+                        if(estimateQuality!=null) {
+                            revenueData.put(Constants.ESTIMATE_TYPE, estimateQuality);
+                        }
+                        revenueData.put(Constants.VALUE, regionRevenues.get(r));
+                        revenueData.put(Constants.PARENT_REVENUE_ID, parentModel.getId());
+                        revenueData.put(Constants.REGION_ID, regionModel.getId());
+                        revenueData.put(Constants.YEAR, year);
+                        revenueData.put(Constants.IS_ESTIMATE, true);
+                        revenueModels.add(new MarketShareRevenue(null, revenueData));
+                        revenueRegions.add(regionModel);
                     }
-                    double rev = Double.valueOf(revStr);
-                    // add global market shares
-                    Map<String,Object> revenueData = new HashMap<>();
-                    if(!source.isEmpty()) {
-                        revenueData.put(Constants.SOURCE, source);
-                    }
-                    if(!notes.isEmpty()) {
-                        revenueData.put(Constants.NOTES, notes);
-                    }
-                    if(estimateQuality!=null) {
-                        revenueData.put(Constants.ESTIMATE_TYPE, estimateQuality);
-                    }
-                    revenueData.put(Constants.VALUE, rev);
-                    revenueData.put(Constants.PARENT_REVENUE_ID, parentModel.getId());
-                    revenueData.put(Constants.REGION_ID, regionModel.getId());
-                    revenueData.put(Constants.YEAR, year);
-                    revenueData.put(Constants.IS_ESTIMATE, true);
-                    Model revenueModel = new MarketShareRevenue(null, revenueData);
-                    try {
-                        revenueModel.createInDatabase();
-                        regionIdToParentModelMap.put(regionModel.getId(), revenueModel);
-                    } catch(Exception e) {
-                        e.printStackTrace();
+                    createAll(revenueModels);
+                    for(int r = 0; r < revenueModels.size(); r++) {
+                        if(revenueModels.get(r).existsInDatabase()) {
+                            regionIdToParentModelMap.put(revenueRegions.get(r).getId(), revenueModels.get(r));
+                        }
                     }
                 }
             }
@@ -140,6 +155,22 @@ public class IngestCompanyDataSheet {
         }
     }
 
+    private static void createAll(List<Model> models) {
+        try {
+            Model.createAllInDatabase(models);
+        } catch(Exception e) {
+            e.printStackTrace();
+            // the bulk insert is all or nothing, so retry row by row to keep the rows that are valid
+            for(Model model : models) {
+                try {
+                    model.createInDatabase();
+                } catch(Exception e2) {
+                    e2.printStackTrace();
+                }
+            }
+        }
+    }
+
     private static String getLocationFor(String locationHeader) {
         if(locationHeader.equals("US")) {
             locationHeader = "United States of America";
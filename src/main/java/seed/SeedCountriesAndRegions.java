@@ -3,12 +3,10 @@ package seed;
 import com.opencsv.CSVReader;
 import controllers.DataTable;
 import database.Database;
+import models.Constants;
 
 import java.io.File;
 import java.io.FileReader;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.util.*;
 
 public class SeedCountriesAndRegions {
@@ -18,11 +16,9 @@ public class SeedCountriesAndRegions {
         reader.close();
 
         System.out.println("Num rows: "+data.size());
-        Connection conn = Database.getConn();
-
-        PreparedStatement ps = conn.prepareStatement("insert into countries (name, parent_country_id) values (?, ?) returning id");
-
-        Map<String, Integer> regionToId = new HashMap<>();
+        // regions first so that countries can reference them, each level as one bulk insert
+        List<String> regions = new ArrayList<>();
+        List<String[]> countries = new ArrayList<>();
         for(String[] row : data.subList(1, data.size())) {
             if(row.length==0) continue;
             String country = row[0];
@@ -31,26 +27,31 @@ public class SeedCountriesAndRegions {
                 region = null;
             }
             System.out.println(country+", "+region);
-            if (region!=null && !regionToId.containsKey(region)){
-                ps.setString(1, region);
-                ps.setObject(2, null);
-                ps.execute();
-                ResultSet rs = ps.getResultSet();
-                Integer id = null;
-                if (rs.next()) {
-                    id = rs.getInt(1);
-                }
-                rs.close();
-                if(id!=null) {
-                    regionToId.put(region, id);
-                }
+            if (region!=null && !regions.contains(region)){
+                regions.add(region);
             }
+            countries.add(new String[]{country, region});
+        }
+
+        List<Map<String,Object>> regionRows = new ArrayList<>();
+        for(String region : regions) {
+            Map<String,Object> row = new HashMap<>();
+            row.put(Constants.NAME, region);
+            regionRows.add(row);
+        }
+        List<Integer> regionIds = Database.insertAll(Constants.REGION_TABLE, regionRows);
+        Map<String, Integer> regionToId = new HashMap<>();
+        for(int i = 0; i < regions.size(); i++) {
+            regionToId.put(regions.get(i), regionIds.get(i));
+        }
 
-            // add country
-            Integer parentId = region == null ? null : regionToId.get(region);
-            ps.setString(1, country);
-            ps.setObject(2, parentId);
-            ps.execute();
+        List<Map<String,Object>> countryRows = new ArrayList<>();
+        for(String[] country : countries) {
+            Map<String,Object> row = new HashMap<>();
+            row.put(Constants.NAME, country[0]);
+            row.put(Constants.PARENT_REGION_ID, country[1] == null ? null : regionToId.get(country[1]));
+            countryRows.add(row);
         }
+        Database.insertAll(Constants.REGION_TABLE, countryRows);
     }
 }
@@ -18,6 +18,9 @@ public class SeedMarketTaxonomy {
 
         int currentDepth = 0;
         List<Model> models = new ArrayList<>();
+        // markets are created one taxonomy level at a time, since children need the ids of their parents
+        Map<Model,Model> parents = new HashMap<>();
+        List<List<Model>> levels = new ArrayList<>();
         Model priorModel = null;
         for(String[] line : data) {
             int endIdx = 0;
@@ -46,18 +49,29 @@ public class SeedMarketTaxonomy {
                     models.remove(0);
                 }
             }
-            Model model;
             Map<String,Object> d = new HashMap<>();
             d.put(Constants.NAME, name);
+            Model model = new Market(null, d);
             if(models.size() > 0) {
-                model = models.get(0);
-                d.put(Constants.PARENT_MARKET_ID, model.getId());
+                parents.put(model, models.get(0));
             }
-            model = new Market(null, d);
-            model.createInDatabase();
+            while(levels.size() <= models.size()) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(models.size()).add(model);
             priorModel = model;
             currentDepth = depth;
         }
 
+        for(List<Model> level : levels) {
+            for(Model model : level) {
+                Model parent = parents.get(model);
+                if(parent!=null) {
+                    model.getData().put(Constants.PARENT_MARKET_ID, parent.getId());
+                }
+            }
+            Model.createAllInDatabase(level);
+        }
+
     }
 }